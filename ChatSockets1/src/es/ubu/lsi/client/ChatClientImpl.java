@@ -1,20 +1,35 @@
 package es.ubu.lsi.client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MailboxFrames;
 import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.TcpTransport;
+import es.ubu.lsi.common.Transport;
 
 /**
  * Clase ChatClientImpl Implementacion del cliente de chat. Contiene
  * ChatClientListener como una clase interna.
- * 
+ *
+ * Es un front end de consola sobre {@link ChatSession}: lee las lineas del
+ * teclado, las envia por la sesion y muestra por pantalla los mensajes que
+ * recibe. Los errores no terminan la JVM: {@link #start()} devuelve false, de
+ * modo que el cliente puede usarse desde pruebas con otro {@link Transport} y
+ * otra entrada.
+ *
  * Quick Setup: https://github.com/JosemaING/ChatSockets.git
- * 
+ *
  * @author Jose Maria Santos
  * @version 1.0
  */
@@ -30,60 +45,71 @@ public class ChatClientImpl implements ChatClient {
 	/** Puerto de conexion. */
 	private int port;
 
-	/** ID. */
-	private static int id;
-
 	/** Booleano carry on, indica el permiso para leer del canal. */
-	private boolean carryOn = true;
+	private volatile boolean carryOn = true;
+
+	/** Grupo de E/S de la sesion de consola. */
+	private ChatSessionGroup group;
+
+	/** Sesion con el servidor. */
+	private ChatSession session;
 
-	/** Socket del cliente. */
-	private Socket socket;
+	/** Ficheros recibidos, se guardan en el directorio temporal. */
+	private FileDownloads downloads = new FileDownloads(Paths.get(System.getProperty("java.io.tmpdir")));
 
-	/** Salida. */
-	ObjectOutputStream outputStream;
+	/** Usuarios conectados. */
+	private PresenceView presence = new PresenceView();
 
-	/** Entrada */
-	ObjectInputStream inputStream;
+	/** Entrada de los comandos, el teclado salvo en pruebas. */
+	private InputStream keyboard;
 
 	/** Entrada por teclado. */
 	private Scanner input;
 
 	/**
 	 * Constructor de la clase ChatClientImpl.
-	 * 
+	 *
 	 * @param server   IP del servidor al que se conecta el cliente.
 	 * @param port     Puerto del servidor al que envia las peticiones.
 	 * @param username Nombre de usuario con el que se conecta.
 	 */
 	public ChatClientImpl(String server, int port, String username) {
+		this(server, port, username, new TcpTransport(), System.in);
+	}
+
+	/**
+	 * Constructor con el transporte y la entrada de los comandos.
+	 *
+	 * @param server    IP del servidor al que se conecta el cliente.
+	 * @param port      Puerto del servidor al que envia las peticiones.
+	 * @param username  Nombre de usuario con el que se conecta.
+	 * @param transport Transporte de la conexion.
+	 * @param keyboard  Entrada de la que se leen los comandos.
+	 */
+	public ChatClientImpl(String server, int port, String username, Transport transport, InputStream keyboard) {
 		this.server = server;
 		this.port = port;
 		this.username = username;
-
-		try {
-
-			this.socket = new Socket(this.server, this.port);
-			outputStream = new ObjectOutputStream(socket.getOutputStream());
-		} catch (IOException e) {
-			System.err.println("ERROR: Could not launch client! Exiting now...");
-			e.printStackTrace();
-			System.exit(1);
-		}
+		this.keyboard = keyboard;
+		this.group = new ChatSessionGroup(1, transport);
+		this.session = group.newSession(this.server, this.port, this.username, new ChatClientListener());
 	}
 
 	/**
 	 * Inicia el cliente y conecta este cliente con el servidor.
-	 * 
+	 *
 	 * @return true, si no ha habido error.
 	 */
 	@Override
 	public boolean start() {
 		try {
 			// Conectarse al servidor y enviar el nombre de usuario
-			connect();
+			if (!connect()) {
+				return false;
+			}
 
 			// Preparar para leer mensajes del teclado
-			input = new Scanner(System.in);
+			input = new Scanner(keyboard);
 			String text;
 
 			// Bucle principal del cliente
@@ -91,24 +117,32 @@ public class ChatClientImpl implements ChatClient {
 				text = input.nextLine(); // Lee la entrada del usuario
 
 				if (text.equalsIgnoreCase("LOGOUT")) {
-					// Si el usuario quiere desconectarse
-					ChatMessage msg = new ChatMessage(id, MessageType.LOGOUT, "");
-					sendMessage(msg);
+					// Si el usuario quiere desconectarse, esperamos a que se envie el mensaje
+					awaitQuietly(session.logout());
 					break; // Salir del bucle despus de enviar el mensaje de desconexin
 				} else if (text.equalsIgnoreCase("SHUTDOWN")) {
 					// Si el usuario enva el comando de apagado
 					System.out.println("Sending shutdown command to server...");
-					ChatMessage msg = new ChatMessage(id, MessageType.SHUTDOWN, "");
-					sendMessage(msg);
-					// Considera si quieres que el cliente se detenga despus de enviar el comando
-					// de apagado
+					ChatMessage msg = new ChatMessage(session.getId(), MessageType.SHUTDOWN, "");
+					awaitQuietly(session.send(msg));
 					break;
+				} else if (text.equalsIgnoreCase("LATENCY")) {
+					// Muestra la latencia de recepcion, con la traza activada
+					System.out.println(session.getReceiveLatency());
+				} else if (text.equalsIgnoreCase("WHO")) {
+					// Pide la lista de usuarios conectados
+					session.requestPresence();
+				} else if (text.toLowerCase().startsWith("file ")) {
+					// Envia un fichero al resto de clientes
+					sendFile(Paths.get(text.substring(5).trim()));
 				} else {
 					// Para cualquier otro mensaje
-					ChatMessage msg = new ChatMessage(id, MessageType.MESSAGE, text);
+					ChatMessage msg = new ChatMessage(session.getId(), MessageType.MESSAGE, text);
 					sendMessage(msg);
 				}
 			}
+		} catch (NoSuchElementException | IllegalStateException e) {
+			// Se ha cerrado la entrada estandar o la sesion
 		} finally {
 			// Asegurar que el cliente se desconecte correctamente al salir
 			disconnect();
@@ -117,19 +151,34 @@ public class ChatClientImpl implements ChatClient {
 	}
 
 	/**
-	 * Envia un mensaje al servidor.
-	 * 
+	 * Envia un mensaje al servidor. El envio es asincrono, los errores se muestran
+	 * al completarse.
+	 *
 	 * @param msg Mensaje a enviar.
 	 */
 	@Override
 	public void sendMessage(ChatMessage msg) {
-		try {
-			outputStream.writeObject(msg); // Envia el mensaje por el canal de salida
-		} catch (IOException e) {
+		session.send(msg).exceptionally(e -> {
 			System.err.println("ERROR: Could not send message to server.");
-			e.printStackTrace(); // Muestra la traza de la excepcion
 			disconnect();
-		}
+			return null;
+		});
+	}
+
+	/**
+	 * Envia un fichero al servidor. El envio es asincrono, el resultado se muestra
+	 * al completarse.
+	 *
+	 * @param path fichero a enviar
+	 */
+	private void sendFile(Path path) {
+		session.sendFile(path).whenComplete((v, e) -> {
+			if (e == null) {
+				System.out.println("File " + path.getFileName() + " sent.");
+			} else {
+				System.err.println("ERROR: Could not send file " + path + ".");
+			}
+		});
 	}
 
 	/**
@@ -137,42 +186,46 @@ public class ChatClientImpl implements ChatClient {
 	 */
 	@Override
 	public void disconnect() {
-		try {
-			if (input != null) input.close();
-			if (outputStream != null) outputStream.close();
-			if (socket != null) socket.close();
-			carryOn = false; // Dejamos de leer del canal y aseguramos que el Listener se detenga
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		carryOn = false; // Dejamos de leer del canal y aseguramos que el Listener se detenga
+		if (input != null) input.close();
+		group.close();
 	}
 
 	/**
 	 * Envia una peticion de login al servidor y se queda a la espera de recibir
 	 * respuesta.
+	 *
+	 * @return true si el servidor acepta el login
 	 */
-	private void connect() {
-		ChatMessage msg = new ChatMessage(0, MessageType.MESSAGE, username);
-
+	private boolean connect() {
 		try {
-			inputStream = new ObjectInputStream(socket.getInputStream());
-			sendMessage(msg);
-			msg = (ChatMessage) inputStream.readObject();
-
+			ChatMessage msg = session.connect().get();
 			System.out.println(msg.getMessage());
-			if (msg.getType() == MessageType.LOGOUT) {
-				System.out.println("Shutting down client now...");
-				disconnect();
-				System.exit(0);
-			}
-			// Establecemos el id del cliente con el id otorgado por el servidor
-			id = msg.getId();
-			// System.out.println("Cliente: ID del mensaje recibido del server: " + id);
-			new Thread(new ChatClientListener(inputStream, id)).start();
-		} catch (IOException | ClassNotFoundException e) {
+			return true;
+		} catch (ExecutionException e) {
+			// El servidor rechaza el login con un mensaje de LOGOUT
+			System.out.println(e.getCause().getMessage());
 			System.err.println("ERROR: could not get response from server!");
-			disconnect();
-			System.exit(1);
+			System.out.println("Shutting down client now...");
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Espera a que termine un envio, ignorando el posible error.
+	 *
+	 * @param future futuro del envio
+	 */
+	private static void awaitQuietly(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("ERROR: Could not send message to server.");
 		}
 	}
 
@@ -188,7 +241,7 @@ public class ChatClientImpl implements ChatClient {
 
 	/**
 	 * Metodo principal de ejecucion del cliente
-	 * 
+	 *
 	 * @param args argumentos de entrada del programa cliente.
 	 */
 	public static void main(String[] args) {
@@ -206,54 +259,107 @@ public class ChatClientImpl implements ChatClient {
 			System.exit(1);
 		}
 
-		new ChatClientImpl(server, port, username).start();
+		if (!new ChatClientImpl(server, port, username).start()) {
+			System.exit(1);
+		}
 	}
 
 	/**
-	 * Clase interna ChatClientListener, crea un hilo de escucha continuamente los
-	 * mensajes que entran del servidor y los muestra al usuario del cliente del
-	 * chat. Implementa la interfaz Runnable.
+	 * Clase interna ChatClientListener, recibe los mensajes que entran del
+	 * servidor a traves de la sesion y los muestra al usuario del cliente del
+	 * chat. Implementa la interfaz ChatMessageListener.
 	 *
 	 * @see ChatClientImpl
 	 */
-	class ChatClientListener implements Runnable {
+	class ChatClientListener implements ChatMessageListener {
 
-		/** Input. */
-		ObjectInputStream serverInput;
+		/**
+		 * Muestra por pantalla los mensajes que provienen del servidor y guarda los
+		 * ficheros recibidos.
+		 */
+		@Override
+		public void onMessage(ChatSession session, ChatMessage msg) {
+			if (PresenceView.isPresenceMessage(msg)) {
+				showPresence(msg);
+				return;
+			}
+			if (msg.getType() == MessageType.MAILBOX) {
+				showMailbox(msg);
+				return;
+			}
+			if (!FileDownloads.isFileMessage(msg)) {
+				System.out.println(msg.getMessage());
+				return;
+			}
+			try {
+				Path received = downloads.handle(msg);
+				if (received != null) {
+					System.out.println("File received: " + received);
+				}
+			} catch (IOException e) {
+				System.err.println("ERROR: Could not save file " + msg.getMessage() + ".");
+			}
+		}
 
 		/**
-		 * Constructor.
+		 * Avisa de los mensajes que el servidor ya no puede reenviar.
+		 */
+		@Override
+		public void onMessagesLost(ChatSession session, long count) {
+			System.err.println("ERROR: " + count + " messages lost while disconnected, use search to find them.");
+		}
+
+		/**
+		 * Actualiza los usuarios conectados y muestra la lista completa o los
+		 * cambios.
 		 *
-		 * @param in Canal de entrada
+		 * @param msg mensaje de presencia
 		 */
-		public ChatClientListener(ObjectInputStream in, int id) {
-			this.serverInput = in;
+		private void showPresence(ChatMessage msg) {
+			if (presence.apply(msg)) {
+				System.out.println("Online users: " + String.join(", ", presence.online()));
+			} else {
+				if (!presence.lastJoined().isEmpty()) {
+					System.out.println("Joined: " + String.join(", ", presence.lastJoined()));
+				}
+				if (!presence.lastLeft().isEmpty()) {
+					System.out.println("Left: " + String.join(", ", presence.lastLeft()));
+				}
+			}
 		}
 
 		/**
-		 * Escucha en el canal de entrada los mensajes que provienen del servidor.
+		 * Muestra los mensajes directos recibidos mientras se estaba desconectado.
+		 *
+		 * @param msg mensaje con el buzon
 		 */
-		@Override
-		public void run() {
+		private void showMailbox(ChatMessage msg) {
 			try {
-				while (carryOn) { // Mientras pueda leer del canal de entrada
-					ChatMessage msg = (ChatMessage) serverInput.readObject();
-					System.out.println(msg.getMessage());
+				List<MailboxFrames.Entry> entries = MailboxFrames.decode(msg.getData());
+				SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm:ss");
+				System.out.println("Messages received while offline: " + entries.size());
+				for (MailboxFrames.Entry entry : entries) {
+					System.out.println("[" + format.format(new Date(entry.getMillis())) + "] " + entry.getFrom()
+							+ " (private): " + entry.getText());
 				}
 			} catch (IOException e) {
+				System.err.println("ERROR: Could not read offline messages.");
+			}
+		}
+
+		/**
+		 * Avisa de la perdida de conexion y detiene el cliente.
+		 */
+		@Override
+		public void onDisconnect(ChatSession session, Throwable cause) {
+			// Si el login fallo, el error ya se muestra al conectar
+			if (cause != null && carryOn && !session.connect().isCompletedExceptionally()) {
 				System.err.println("ERROR: Server conexion lost.");
-				carryOn = false;
-			} catch (ClassNotFoundException e) {
-				System.err.println("ERROR: Could not receive message. Server is unavailable.");
-			} finally {
-				try {
-					serverInput.close();
-					System.out.println("Shutting down client now...");
-					disconnect();
-				} catch (IOException e2) {
-					System.err.println("ERROR: Could not close the input conexion.");
-				}
+				System.out.println("Shutting down client now...");
+				disconnect();
 			}
+			downloads.abortAll();
+			carryOn = false;
 		}
 	}
 }
@@ -0,0 +1,43 @@
+package es.ubu.lsi.client;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Interfaz de retrollamada para recibir los eventos de una sesion de chat
+ * asincrona.
+ *
+ * Los metodos se invocan desde el hilo lector de la sesion, por lo que no deben
+ * bloquearse durante mucho tiempo.
+ *
+ * @author Jose Maria Santos
+ * @see ChatSession
+ */
+public interface ChatMessageListener {
+
+	/**
+	 * Se invoca por cada mensaje recibido del servidor.
+	 *
+	 * @param session sesion que ha recibido el mensaje
+	 * @param msg     mensaje recibido
+	 */
+	void onMessage(ChatSession session, ChatMessage msg);
+
+	/**
+	 * Se invoca al retomar una sesion si el servidor ya no puede reenviar todos
+	 * los mensajes que faltaban, antes de entregar los que si reenvia. Esos
+	 * mensajes no van a llegar, el receptor debe recuperarlos por otra via (por
+	 * ejemplo con una busqueda en el historial) o avisar al usuario.
+	 *
+	 * @param session sesion retomada
+	 * @param count   numero de mensajes perdidos
+	 */
+	void onMessagesLost(ChatSession session, long count);
+
+	/**
+	 * Se invoca una unica vez cuando la sesion se cierra.
+	 *
+	 * @param session sesion cerrada
+	 * @param cause   causa del cierre, null si ha sido un cierre ordenado
+	 */
+	void onDisconnect(ChatSession session, Throwable cause);
+}
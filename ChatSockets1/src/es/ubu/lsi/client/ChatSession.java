@@ -0,0 +1,621 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Connection;
+import es.ubu.lsi.common.FrameInput;
+import es.ubu.lsi.common.FrameOutput;
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.Trace;
+
+/**
+ * Sesion de chat asincrona y embebible.
+ *
+ * La conexion devuelve un futuro que se completa con el mensaje de bienvenida
+ * del servidor. Los envios no bloquean: se encolan y el pool de E/S del grupo
+ * los escribe en lotes, con un unico vaciado del canal por lote. Los ficheros
+ * se envian por trozos entre lote y lote, sin retrasar el chat. Los mensajes
+ * recibidos se entregan al {@link ChatMessageListener} de la sesion. Los
+ * mensajes se codifican directamente en el buffer del lote y se leen desde un
+ * buffer reutilizado durante toda la conexion.
+ *
+ * Cada mensaje del servidor llega con un numero de secuencia. La sesion
+ * descarta los repetidos y confirma lo recibido con un ACK acumulativo cada
+ * {@link #ACK_EVERY} mensajes o, como mucho, {@link #ACK_DELAY_MILLIS} ms
+ * despues del primero sin confirmar. Para retomar una sesion caida se crea una
+ * nueva con {@link #resumeFrom(long)}: el login lleva la ultima secuencia
+ * recibida y el servidor reenvia lo que falta. Si el servidor ya no guarda la
+ * sesion anterior la respuesta al login lo indica y la numeracion empieza de
+ * nuevo. Si guarda la sesion pero ya no puede reenviar todo lo que falta, la
+ * respuesta al login indica hasta donde y la sesion avisa al receptor con
+ * {@link ChatMessageListener#onMessagesLost(ChatSession, long)} antes de
+ * entregar nada.
+ *
+ * Con la traza activada ({@link Trace}) los mensajes de chat salen con el
+ * instante de envio y la sesion mide la latencia de los mensajes con traza que
+ * recibe, con el reloj de pared, ya que el emisor puede estar en otra maquina.
+ *
+ * @author Jose Maria Santos
+ * @see ChatSessionGroup
+ */
+public class ChatSession {
+
+	/** Numero maximo de mensajes escritos por lote. */
+	private static final int MAX_BATCH = 64;
+
+	/** Mensajes recibidos que fuerzan un ACK inmediato. */
+	private static final int ACK_EVERY = 32;
+
+	/** Retraso maximo de un ACK, en milisegundos. */
+	private static final long ACK_DELAY_MILLIS = 200;
+
+	/** Tamano de cada trozo de fichero, en bytes. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Grupo al que pertenece la sesion. */
+	private final ChatSessionGroup group;
+
+	/** Servidor. */
+	private final String server;
+
+	/** Puerto de conexion. */
+	private final int port;
+
+	/** Nombre del usuario. */
+	private final String username;
+
+	/** Receptor de mensajes. */
+	private final ChatMessageListener listener;
+
+	/** ID otorgado por el servidor. */
+	private volatile int id;
+
+	/** Ultima secuencia recibida. */
+	private volatile long lastSeq;
+
+	/** Mensajes perdidos al retomar la sesion, pendientes de avisar al receptor. */
+	private long lost;
+
+	/** Mensajes recibidos sin confirmar. */
+	private int unacked;
+
+	/** Indica si hay un ACK diferido programado. */
+	private boolean ackScheduled;
+
+	/** Latencia desde el envio del emisor hasta la recepcion. */
+	private final LatencyHistogram receiveLatency = new LatencyHistogram("receive");
+
+	/** Indica si se ha lanzado la conexion. */
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	/** Conexion de la sesion, null hasta que se establece. */
+	private volatile Connection connection;
+
+	/** Salida. */
+	private FrameOutput output;
+
+	/** Entrada. */
+	private FrameInput input;
+
+	/** Mensajes pendientes de escribir. */
+	private final Queue<PendingMessage> outbox = new ConcurrentLinkedQueue<PendingMessage>();
+
+	/** Ficheros pendientes de enviar, se envian de uno en uno. */
+	private final Queue<FileUpload> uploads = new ConcurrentLinkedQueue<FileUpload>();
+
+	/** Indica si hay un vaciado del buzon de salida en curso o programado. */
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	/** Indica si la sesion esta cerrada. */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/** Futuro del login, se completa con la respuesta del servidor. */
+	private final CompletableFuture<ChatMessage> login = new CompletableFuture<ChatMessage>();
+
+	/**
+	 * Constructor, las sesiones se crean desde el grupo.
+	 *
+	 * @param group    grupo de la sesion
+	 * @param server   IP del servidor
+	 * @param port     puerto del servidor
+	 * @param username nombre de usuario
+	 * @param listener receptor de mensajes
+	 * @see ChatSessionGroup#newSession(String, int, String, ChatMessageListener)
+	 */
+	ChatSession(ChatSessionGroup group, String server, int port, String username, ChatMessageListener listener) {
+		this.group = group;
+		this.server = server;
+		this.port = port;
+		this.username = username;
+		this.listener = listener;
+	}
+
+	/**
+	 * Conecta con el servidor y envia la peticion de login. Llamadas sucesivas
+	 * devuelven el mismo futuro.
+	 *
+	 * @return futuro que se completa con el mensaje de bienvenida, o con error si
+	 *         el servidor rechaza el usuario o no se puede conectar
+	 */
+	public CompletableFuture<ChatMessage> connect() {
+		if (started.compareAndSet(false, true)) {
+			group.ioPool().execute(this::doConnect);
+		}
+		return login;
+	}
+
+	/**
+	 * Encola un mensaje para su envio.
+	 *
+	 * @param msg mensaje a enviar
+	 * @return futuro que se completa cuando el mensaje se ha escrito en el canal
+	 */
+	public CompletableFuture<Void> send(ChatMessage msg) {
+		if (Trace.ENABLED && msg.getType() == MessageType.MESSAGE && msg.getTrace() == null) {
+			msg.setTrace(Trace.start());
+		}
+		PendingMessage pending = new PendingMessage(msg);
+		if (closed.get()) {
+			pending.future.completeExceptionally(new IOException("Session closed"));
+			return pending.future;
+		}
+		outbox.add(pending);
+		if (closed.get()) {
+			failPending(); // cerrada mientras se encolaba, close() puede no haberlo visto
+		} else {
+			scheduleDrain();
+		}
+		return pending.future;
+	}
+
+	/**
+	 * Encola un mensaje con el ID de la sesion. Si el login no ha terminado, el
+	 * mensaje se construye cuando se conozca el ID.
+	 *
+	 * @param type tipo de mensaje
+	 * @param text texto del mensaje
+	 * @return futuro que se completa cuando el mensaje se ha escrito en el canal
+	 */
+	public CompletableFuture<Void> send(MessageType type, String text) {
+		return login.thenCompose(welcome -> send(new ChatMessage(id, type, text)));
+	}
+
+	/**
+	 * Encola un fichero para su envio. El servidor lo ofrece al resto de clientes
+	 * con un numero, y cada uno lo descarga con {@link #requestFile(int)}.
+	 *
+	 * @param path fichero a enviar
+	 * @return futuro que se completa cuando se ha escrito el ultimo trozo
+	 */
+	public CompletableFuture<Void> sendFile(Path path) {
+		return login.thenCompose(welcome -> {
+			FileUpload upload;
+			try {
+				upload = new FileUpload(path);
+			} catch (IOException e) {
+				CompletableFuture<Void> failed = new CompletableFuture<Void>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+			uploads.add(upload);
+			if (closed.get()) {
+				failPending();
+			} else {
+				scheduleDrain();
+			}
+			return upload.future;
+		});
+	}
+
+	/**
+	 * Pide al servidor un snapshot de los usuarios conectados, que llega al
+	 * receptor como un mensaje PRESENCE.
+	 *
+	 * @return futuro que se completa cuando se ha escrito la peticion
+	 * @see PresenceView
+	 */
+	public CompletableFuture<Void> requestPresence() {
+		return send(MessageType.PRESENCE, "");
+	}
+
+	/**
+	 * Pide al servidor un fichero ofrecido, que llega al receptor como una
+	 * cabecera FILE seguida de sus trozos.
+	 *
+	 * @param fileId numero con el que se anuncio el fichero
+	 * @return futuro que se completa cuando se ha escrito la peticion
+	 * @see FileDownloads
+	 */
+	public CompletableFuture<Void> requestFile(int fileId) {
+		return send(MessageType.MESSAGE, "get " + fileId);
+	}
+
+	/**
+	 * Envia el mensaje de logout y cierra la sesion al terminar.
+	 *
+	 * @return futuro que se completa al cerrar la sesion
+	 */
+	public CompletableFuture<Void> logout() {
+		return send(MessageType.LOGOUT, "").whenComplete((v, e) -> disconnect());
+	}
+
+	/**
+	 * Cierra la sesion de forma ordenada.
+	 */
+	public void disconnect() {
+		close(null);
+	}
+
+	/**
+	 * Devuelve el ID otorgado por el servidor.
+	 *
+	 * @return id de la sesion, 0 si aun no se ha hecho login
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Indica la ultima secuencia recibida en una sesion anterior del mismo
+	 * usuario, para que el servidor reenvie solo lo posterior y descartar lo que
+	 * ya se hubiera recibido. Debe llamarse antes de conectar.
+	 *
+	 * @param seq ultima secuencia recibida
+	 * @see #getLastSeq()
+	 */
+	public void resumeFrom(long seq) {
+		this.lastSeq = seq;
+	}
+
+	/**
+	 * Devuelve la ultima secuencia recibida del servidor.
+	 *
+	 * @return ultima secuencia, 0 si no se ha recibido ningun mensaje
+	 */
+	public long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Devuelve el histograma de latencia de recepcion de los mensajes con traza.
+	 *
+	 * @return histograma de latencia
+	 */
+	public LatencyHistogram getReceiveLatency() {
+		return receiveLatency;
+	}
+
+	/**
+	 * Devuelve el nombre de usuario de la sesion.
+	 *
+	 * @return nombre de usuario
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Indica si la sesion esta cerrada.
+	 *
+	 * @return true si esta cerrada
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Abre la conexion, realiza el login y lanza el bucle de lectura. Se ejecuta en
+	 * el pool de E/S.
+	 */
+	private void doConnect() {
+		try {
+			connection = group.transport().connect(server, port);
+			if (closed.get()) {
+				connection.close(); // se ha cerrado la sesion mientras conectaba
+				throw new IOException("Session closed");
+			}
+			output = new FrameOutput(connection.getOutputStream());
+			byte[] resume = lastSeq == 0 ? null : ByteBuffer.allocate(8).putLong(lastSeq).array();
+			output.writeMessage(new ChatMessage(0, MessageType.MESSAGE, username, resume));
+			output.flush();
+			input = new FrameInput(connection.getInputStream());
+			// La respuesta al login lleva la ultima secuencia que el servidor puede reenviar
+			long resendUpTo = input.readLong();
+			ChatMessage reply = input.readMessage();
+			if (reply.getType() == MessageType.LOGOUT) {
+				IOException refused = new IOException(reply.getMessage());
+				login.completeExceptionally(refused);
+				close(refused);
+				return;
+			}
+			if (resendUpTo < lastSeq) {
+				lastSeq = resendUpTo; // el servidor no guarda la sesion anterior, se empieza de nuevo
+			} else if (lastSeq != 0 && reply.getData() != null && reply.getData().length == 8) {
+				// Los datos llevan la ultima secuencia que el servidor ya no puede reenviar
+				long ackedSeq = ByteBuffer.wrap(reply.getData()).getLong();
+				if (ackedSeq > lastSeq) {
+					lost = ackedSeq - lastSeq;
+					lastSeq = ackedSeq;
+				}
+			}
+			id = reply.getId();
+			login.complete(reply);
+			group.startReader(this::readLoop);
+			scheduleDrain();
+		} catch (IOException e) {
+			login.completeExceptionally(e);
+			close(e);
+		}
+	}
+
+	/**
+	 * Bucle de lectura, entrega cada mensaje al receptor hasta que se cierra la
+	 * sesion. Antes avisa de los mensajes perdidos al retomarla, si los hay. Un
+	 * error del receptor tambien cierra la sesion, para que no se quede sin lector
+	 * con los envios pendientes sin completar.
+	 */
+	private void readLoop() {
+		try {
+			if (lost > 0) {
+				listener.onMessagesLost(this, lost);
+			}
+			while (!closed.get()) {
+				long seq = input.readLong();
+				ChatMessage msg = input.readMessage();
+				if (seq != 0) {
+					if (seq <= lastSeq) {
+						continue; // reenviado por el servidor y ya recibido
+					}
+					received(seq);
+				}
+				if (msg.getTrace() != null) {
+					receiveLatency.record((System.currentTimeMillis() - msg.getTrace()[Trace.SEND_MILLIS]) * 1000000);
+				}
+				listener.onMessage(this, msg);
+			}
+		} catch (IOException | RuntimeException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Anota un mensaje recibido y envia o programa el ACK.
+	 *
+	 * @param seq secuencia del mensaje
+	 */
+	private synchronized void received(long seq) {
+		lastSeq = seq;
+		if (++unacked >= ACK_EVERY) {
+			sendAck();
+		} else if (!ackScheduled) {
+			ackScheduled = true;
+			group.schedule(this::delayedAck, ACK_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Envia el ACK diferido, si sigue habiendo mensajes sin confirmar.
+	 */
+	private synchronized void delayedAck() {
+		ackScheduled = false;
+		sendAck();
+	}
+
+	/**
+	 * Confirma todo lo recibido hasta la ultima secuencia.
+	 */
+	private synchronized void sendAck() {
+		if (unacked > 0 && !closed.get()) {
+			unacked = 0;
+			send(new ChatMessage(id, MessageType.ACK, Long.toString(lastSeq)));
+		}
+	}
+
+	/**
+	 * Programa un vaciado del buzon de salida si no hay otro en curso. Los envios
+	 * previos al login esperan a que este termine.
+	 */
+	private void scheduleDrain() {
+		if (login.isDone() && !login.isCompletedExceptionally() && (!outbox.isEmpty() || !uploads.isEmpty())
+				&& draining.compareAndSet(false, true)) {
+			group.ioPool().execute(this::drain);
+		}
+	}
+
+	/**
+	 * Escribe un lote de mensajes pendientes y, si no queda chat pendiente, un
+	 * trozo del fichero en curso. Vacia el canal una sola vez.
+	 */
+	private void drain() {
+		List<PendingMessage> batch = new ArrayList<PendingMessage>(MAX_BATCH);
+		try {
+			PendingMessage pending;
+			while (batch.size() < MAX_BATCH && (pending = outbox.poll()) != null) {
+				batch.add(pending);
+				output.writeMessage(pending.msg);
+			}
+			if (outbox.isEmpty()) {
+				writeChunk();
+			}
+			output.flush();
+			for (PendingMessage done : batch) {
+				done.future.complete(null);
+			}
+		} catch (IOException e) {
+			for (PendingMessage failed : batch) {
+				failed.future.completeExceptionally(e);
+			}
+			close(e);
+		} finally {
+			draining.set(false);
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Escribe el siguiente trozo del fichero en curso y lo da por terminado tras
+	 * el trozo vacio final.
+	 *
+	 * @throws IOException si falla la lectura del fichero o la escritura
+	 */
+	private void writeChunk() throws IOException {
+		FileUpload upload = uploads.peek();
+		if (upload == null) {
+			return;
+		}
+		try {
+			output.writeMessage(upload.next(id));
+		} catch (IOException e) {
+			uploads.remove(upload);
+			upload.close();
+			upload.future.completeExceptionally(e);
+			throw e;
+		}
+		if (upload.done) {
+			uploads.remove(upload);
+			upload.close();
+			upload.future.complete(null);
+		}
+	}
+
+	/**
+	 * Cierra la sesion una unica vez, falla los envios pendientes y avisa al
+	 * receptor.
+	 *
+	 * @param cause causa del cierre, null si es ordenado
+	 */
+	private void close(Throwable cause) {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (connection != null) connection.close();
+		} catch (IOException e) {
+			// la conexion ya no es utilizable, no hay nada mas que hacer
+		}
+		failPending();
+		login.completeExceptionally(cause != null ? cause : new IOException("Session closed"));
+		group.release(this);
+		listener.onDisconnect(this, cause);
+	}
+
+	/**
+	 * Falla los envios pendientes de una sesion cerrada. Lo llama el cierre y
+	 * tambien quien encola tras ver la sesion cerrada, ya que el cierre puede
+	 * haber vaciado las colas justo antes de que se anadiera su envio.
+	 */
+	private void failPending() {
+		IOException closedError = new IOException("Session closed");
+		PendingMessage pending;
+		while ((pending = outbox.poll()) != null) {
+			pending.future.completeExceptionally(closedError);
+		}
+		FileUpload upload;
+		while ((upload = uploads.poll()) != null) {
+			upload.close();
+			upload.future.completeExceptionally(closedError);
+		}
+	}
+
+	/**
+	 * Mensaje pendiente de envio junto con su futuro.
+	 */
+	private static class PendingMessage {
+
+		/** Mensaje. */
+		final ChatMessage msg;
+
+		/** Futuro que se completa al escribir el mensaje. */
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param msg mensaje
+		 */
+		PendingMessage(ChatMessage msg) {
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Fichero pendiente de envio, se lee por trozos.
+	 */
+	private static class FileUpload {
+
+		/** Nombre del fichero. */
+		final String name;
+
+		/** Canal del fichero. */
+		final FileChannel channel;
+
+		/** Buffer de los trozos, se reutiliza para todo el fichero. */
+		final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+		/** Futuro que se completa al escribir el ultimo trozo. */
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		/** Indica si ya se ha enviado la oferta. */
+		boolean offered;
+
+		/** Indica si ya se ha enviado el trozo vacio final. */
+		boolean done;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param path fichero a enviar
+		 * @throws IOException si no se puede abrir el fichero
+		 */
+		FileUpload(Path path) throws IOException {
+			this.name = path.getFileName().toString();
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		}
+
+		/**
+		 * Devuelve la oferta o el siguiente trozo del fichero. Los datos de un trozo
+		 * completo son el buffer de trozos, validos hasta pedir el siguiente.
+		 *
+		 * @param id ID de la sesion
+		 * @return mensaje a enviar
+		 * @throws IOException si falla la lectura
+		 */
+		ChatMessage next(int id) throws IOException {
+			if (!offered) {
+				offered = true;
+				return new ChatMessage(id, MessageType.FILE, name);
+			}
+			chunk.clear();
+			while (chunk.hasRemaining() && channel.read(chunk) >= 0) {
+				// se rellena el trozo completo salvo al final del fichero
+			}
+			done = chunk.position() == 0;
+			byte[] data = chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+			return new ChatMessage(id, MessageType.FILE_CHUNK, name, data);
+		}
+
+		/**
+		 * Cierra el fichero.
+		 */
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// el fichero solo se leia, no hay nada que recuperar
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package es.ubu.lsi.client;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.ubu.lsi.common.TcpTransport;
+import es.ubu.lsi.common.Transport;
+
+/**
+ * Grupo de sesiones de chat que comparten los hilos de escritura.
+ *
+ * Las conexiones y los envios de todas las sesiones se ejecutan en un pool fijo
+ * de hilos de E/S, y un unico hilo temporizador agrupa los ACK de todas las
+ * sesiones. La lectura no se comparte: cada sesion conectada ocupa un hilo
+ * lector demonio mientras dura su conexion, porque un {@link Transport} solo
+ * ofrece flujos bloqueantes, sin lectura parcial ni aviso de cierre que permita
+ * atender varias conexiones desde un mismo hilo. Los hilos lectores de sesiones
+ * cerradas se reutilizan para las siguientes.
+ *
+ * Las sesiones se conectan por TCP salvo que se indique otro {@link Transport}.
+ *
+ * @author Jose Maria Santos
+ * @see ChatSession
+ */
+public class ChatSessionGroup implements AutoCloseable {
+
+	/** Pool de hilos para conexiones y envios. */
+	private final ExecutorService ioPool;
+
+	/** Hilos de los bucles de lectura, uno por sesion conectada. */
+	private final ExecutorService readerPool;
+
+	/** Temporizador compartido para los ACK diferidos. */
+	private final ScheduledExecutorService scheduler;
+
+	/** Transporte de las conexiones. */
+	private final Transport transport;
+
+	/** Sesiones vivas del grupo. */
+	private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor con un hilo de E/S por procesador.
+	 */
+	public ChatSessionGroup() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ioThreads numero de hilos de E/S compartidos
+	 */
+	public ChatSessionGroup(int ioThreads) {
+		this(ioThreads, new TcpTransport());
+	}
+
+	/**
+	 * Constructor con el transporte de las conexiones.
+	 *
+	 * @param ioThreads numero de hilos de E/S compartidos
+	 * @param transport transporte de las conexiones
+	 */
+	public ChatSessionGroup(int ioThreads, Transport transport) {
+		this.transport = transport;
+		this.ioPool = Executors.newFixedThreadPool(ioThreads, daemonFactory("chat-io-"));
+		this.readerPool = Executors.newCachedThreadPool(daemonFactory("chat-reader-"));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonFactory("chat-timer-"));
+	}
+
+	/**
+	 * Crea una nueva sesion dentro del grupo, sin conectarla.
+	 *
+	 * @param server   IP del servidor
+	 * @param port     puerto del servidor
+	 * @param username nombre de usuario
+	 * @param listener receptor de los mensajes de la sesion
+	 * @return sesion creada
+	 * @see ChatSession#connect()
+	 */
+	public ChatSession newSession(String server, int port, String username, ChatMessageListener listener) {
+		ChatSession session = new ChatSession(this, server, port, username, listener);
+		sessions.add(session);
+		return session;
+	}
+
+	/**
+	 * Devuelve el numero de sesiones vivas del grupo.
+	 *
+	 * @return numero de sesiones
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Desconecta todas las sesiones y detiene los hilos del grupo.
+	 */
+	@Override
+	public void close() {
+		for (ChatSession session : sessions) {
+			session.disconnect();
+		}
+		ioPool.shutdown();
+		readerPool.shutdown();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Devuelve el transporte de las conexiones.
+	 *
+	 * @return transporte
+	 */
+	Transport transport() {
+		return transport;
+	}
+
+	/**
+	 * Devuelve el pool de E/S compartido.
+	 *
+	 * @return pool de E/S
+	 */
+	ExecutorService ioPool() {
+		return ioPool;
+	}
+
+	/**
+	 * Lanza un bucle de lectura en un hilo lector, libre o nuevo.
+	 *
+	 * @param reader bucle de lectura
+	 */
+	void startReader(Runnable reader) {
+		readerPool.execute(reader);
+	}
+
+	/**
+	 * Programa una tarea en el temporizador compartido.
+	 *
+	 * @param task   tarea
+	 * @param millis retraso en milisegundos
+	 */
+	void schedule(Runnable task, long millis) {
+		scheduler.schedule(task, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Elimina una sesion cerrada del grupo.
+	 *
+	 * @param session sesion cerrada
+	 */
+	void release(ChatSession session) {
+		sessions.remove(session);
+	}
+
+	/**
+	 * Crea una factoria de hilos demonio con nombre.
+	 *
+	 * @param prefix prefijo del nombre de los hilos
+	 * @return factoria de hilos
+	 */
+	private static ThreadFactory daemonFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
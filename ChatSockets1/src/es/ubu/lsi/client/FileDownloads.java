@@ -0,0 +1,102 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Recoge los ficheros que el cliente ha pedido al servidor.
+ *
+ * Cada cabecera (FILE) abre un fichero en el directorio de descargas y los
+ * trozos (FILE_CHUNK) se escriben en el segun el ID de la transferencia, de modo
+ * que varias transferencias intercaladas no se mezclan. Los mensajes llegan por
+ * el hilo lector de la sesion y las descargas incompletas se descartan desde el
+ * aviso de desconexion, que puede llegar por otro hilo, asi que los metodos
+ * estan sincronizados.
+ *
+ * @author Jose Maria Santos
+ */
+public class FileDownloads {
+
+	/** Directorio de descargas. */
+	private final Path directory;
+
+	/** Descargas en curso por ID de transferencia. */
+	private final Map<Integer, OutputStream> active = new HashMap<Integer, OutputStream>();
+
+	/** Ruta de las descargas en curso por ID de transferencia. */
+	private final Map<Integer, Path> paths = new HashMap<Integer, Path>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory directorio donde se guardan los ficheros recibidos
+	 */
+	public FileDownloads(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Indica si el mensaje pertenece a una transferencia de fichero.
+	 *
+	 * @param msg mensaje recibido
+	 * @return true si es una cabecera o un trozo
+	 */
+	public static boolean isFileMessage(ChatMessage msg) {
+		return msg.getType() == MessageType.FILE || msg.getType() == MessageType.FILE_CHUNK;
+	}
+
+	/**
+	 * Procesa una cabecera o un trozo.
+	 *
+	 * @param msg mensaje de fichero
+	 * @return ruta del fichero si el mensaje completa la descarga, null si no
+	 * @throws IOException si no se puede escribir el fichero
+	 */
+	public synchronized Path handle(ChatMessage msg) throws IOException {
+		int transferId = msg.getId();
+		if (msg.getType() == MessageType.FILE) {
+			// Solo el nombre, nunca una ruta propuesta por el emisor
+			String name = Paths.get(msg.getMessage()).getFileName().toString();
+			Path path = Files.createTempFile(directory, "received-", "-" + name);
+			active.put(transferId, Files.newOutputStream(path));
+			paths.put(transferId, path);
+			return null;
+		}
+		OutputStream out = active.get(transferId);
+		if (out == null) {
+			return null; // trozo de una descarga que no se ha podido abrir
+		}
+		byte[] data = msg.getData();
+		if (data != null && data.length > 0) {
+			out.write(data);
+			return null;
+		}
+		active.remove(transferId);
+		out.close();
+		return paths.remove(transferId);
+	}
+
+	/**
+	 * Cierra las descargas incompletas y borra sus ficheros.
+	 */
+	public synchronized void abortAll() {
+		for (Map.Entry<Integer, OutputStream> entry : active.entrySet()) {
+			try {
+				entry.getValue().close();
+				Files.deleteIfExists(paths.get(entry.getKey()));
+			} catch (IOException e) {
+				System.err.println("ERROR: Could not discard incomplete file " + paths.get(entry.getKey()));
+			}
+		}
+		active.clear();
+		paths.clear();
+	}
+}
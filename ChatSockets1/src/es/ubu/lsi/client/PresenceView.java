@@ -0,0 +1,117 @@
+package es.ubu.lsi.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Vista local de los usuarios conectados.
+ *
+ * Se inicializa con el snapshot que envia el servidor al hacer login y despues
+ * se mantiene aplicando los deltas de altas y bajas. Los deltas que ya estan
+ * incluidos en el snapshot se ignoran por su version.
+ *
+ * @author Jose Maria Santos
+ */
+public class PresenceView {
+
+	/** Usuarios conectados. */
+	private final Set<String> online = new TreeSet<String>();
+
+	/** Version de la vista. */
+	private long version = -1;
+
+	/** Usuarios que han entrado en el ultimo delta aplicado. */
+	private List<String> lastJoined = Collections.emptyList();
+
+	/** Usuarios que han salido en el ultimo delta aplicado. */
+	private List<String> lastLeft = Collections.emptyList();
+
+	/**
+	 * Indica si el mensaje es de presencia.
+	 *
+	 * @param msg mensaje recibido
+	 * @return true si es de tipo PRESENCE
+	 */
+	public static boolean isPresenceMessage(ChatMessage msg) {
+		return msg.getType() == MessageType.PRESENCE;
+	}
+
+	/**
+	 * Aplica un snapshot o un delta.
+	 *
+	 * @param msg mensaje PRESENCE
+	 * @return true si era un snapshot, false si era un delta
+	 */
+	public synchronized boolean apply(ChatMessage msg) {
+		String[] lines = msg.getMessage().split("\n");
+		String[] header = lines[0].split(" ");
+		if (header[0].equals("snapshot")) {
+			online.clear();
+			for (int i = 1; i < lines.length; i++) {
+				online.add(lines[i]);
+			}
+			version = Long.parseLong(header[1]);
+			return true;
+		}
+		long to = Long.parseLong(header[2]);
+		lastJoined = new ArrayList<String>();
+		lastLeft = new ArrayList<String>();
+		if (to <= version) {
+			return false; // ya incluido en el snapshot
+		}
+		for (int i = 1; i < lines.length; i++) {
+			String username = lines[i].substring(1);
+			if (lines[i].charAt(0) == '+') {
+				online.add(username);
+				lastJoined.add(username);
+			} else {
+				online.remove(username);
+				lastLeft.add(username);
+			}
+		}
+		version = to;
+		return false;
+	}
+
+	/**
+	 * Devuelve una copia de los usuarios conectados.
+	 *
+	 * @return usuarios conectados, ordenados
+	 */
+	public synchronized Set<String> online() {
+		return new TreeSet<String>(online);
+	}
+
+	/**
+	 * Devuelve los usuarios que han entrado en el ultimo delta.
+	 *
+	 * @return usuarios conectados en el ultimo delta
+	 */
+	public synchronized List<String> lastJoined() {
+		return lastJoined;
+	}
+
+	/**
+	 * Devuelve los usuarios que han salido en el ultimo delta.
+	 *
+	 * @return usuarios desconectados en el ultimo delta
+	 */
+	public synchronized List<String> lastLeft() {
+		return lastLeft;
+	}
+
+	/**
+	 * Devuelve la version de la vista.
+	 *
+	 * @return version, -1 si aun no se ha recibido el snapshot
+	 */
+	public synchronized long version() {
+		return version;
+	}
+}
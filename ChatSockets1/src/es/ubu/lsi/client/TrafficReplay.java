@@ -0,0 +1,392 @@
+package es.ubu.lsi.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import es.ubu.lsi.common.CaptureFile;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.Trace;
+
+/**
+ * Reproduce una captura de trafico contra un servidor.
+ *
+ * Cada sesion de la captura se reproduce con su propia conexion, todas dentro
+ * de un {@link ChatSessionGroup}, respetando el orden de las tramas de cada
+ * sesion y sus tiempos divididos por la velocidad: 1 es tiempo real, 10 diez
+ * veces mas rapido y max sin esperas. El primer mensaje de cada sesion es el
+ * login. Los ACK no se reproducen porque las sesiones envian los suyos, ni los
+ * SHUTDOWN para no parar el servidor. Los LOGOUT y cierres se aplazan hasta el
+ * final, para que las sesiones reciban todas las entregas aunque se reproduzca
+ * mas rapido, salvo que el mismo usuario vuelva a entrar antes.
+ *
+ * Los mensajes de chat se envian con traza, de modo que cada entrega mide la
+ * latencia desde el envio. Al terminar se muestra el rendimiento y la latencia,
+ * que se pueden guardar y comparar con los de otra version del servidor.
+ *
+ * @author Jose Maria Santos
+ * @see es.ubu.lsi.common.CaptureFile
+ */
+public class TrafficReplay {
+
+	/** Tiempo sin recibir nada tras el ultimo envio para dar la reproduccion por terminada. */
+	private static final long QUIET_MILLIS = 1000;
+
+	/** Espera maxima de las ultimas entregas, en milisegundos. */
+	private static final long DRAIN_MILLIS = 30000;
+
+	/** Captura a reproducir. */
+	private final File file;
+
+	/** Servidor. */
+	private final String server;
+
+	/** Puerto. */
+	private final int port;
+
+	/** Velocidad, 0 para reproducir sin esperas. */
+	private final double speed;
+
+	/** Sesiones reproducidas, por sesion de la captura. */
+	private final Map<Integer, ReplayedSession> sessions = new HashMap<Integer, ReplayedSession>();
+
+	/** Sesiones con el cierre aplazado, por username. */
+	private final Map<String, ReplayedSession> closing = new HashMap<String, ReplayedSession>();
+
+	/** Latencia de entrega de los mensajes de chat. */
+	private final LatencyHistogram latency = new LatencyHistogram("delivery");
+
+	/** Tramas enviadas. */
+	private final AtomicLong sent = new AtomicLong();
+
+	/** Tramas no reproducidas: ACK, SHUTDOWN y las de sesiones sin login. */
+	private long skipped;
+
+	/** Logins rechazados o fallidos. */
+	private final AtomicLong failedLogins = new AtomicLong();
+
+	/** Mensajes recibidos por todas las sesiones. */
+	private final AtomicLong received = new AtomicLong();
+
+	/** nanoTime de la ultima recepcion. */
+	private volatile long lastReceive;
+
+	/** nanoTime del inicio. */
+	private long start;
+
+	/** Duracion total, hasta la ultima recepcion, en nanosegundos. */
+	private long elapsed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param file   captura
+	 * @param server servidor
+	 * @param port   puerto
+	 * @param speed  velocidad, 0 para reproducir sin esperas
+	 */
+	public TrafficReplay(File file, String server, int port, double speed) {
+		this.file = file;
+		this.server = server;
+		this.port = port;
+		this.speed = speed;
+	}
+
+	/**
+	 * Reproduce la captura y espera a las ultimas entregas.
+	 *
+	 * @throws IOException si no se puede leer la captura
+	 */
+	public void run() throws IOException {
+		try (ChatSessionGroup group = new ChatSessionGroup();
+				CaptureFile.Reader reader = new CaptureFile.Reader(file)) {
+			start = System.nanoTime();
+			lastReceive = start;
+			CaptureFile.Record record;
+			while ((record = reader.next()) != null) {
+				if (speed > 0) {
+					waitUntil(start + (long) (record.getNanos() / speed));
+				}
+				dispatch(group, record);
+			}
+			awaitQuiet();
+			elapsed = lastReceive - start;
+			for (ReplayedSession session : closing.values()) {
+				session.run(session.close);
+			}
+			for (ReplayedSession session : sessions.values()) {
+				session.session.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Reproduce una trama.
+	 *
+	 * @param group  grupo de las sesiones
+	 * @param record trama
+	 */
+	private void dispatch(ChatSessionGroup group, CaptureFile.Record record) {
+		ChatMessage message = record.getMessage();
+		ReplayedSession replayed = sessions.get(record.getSession());
+		if (replayed == null) {
+			if (message == null || message.getType() != MessageType.MESSAGE) {
+				skipped++; // sesion que no llego a hacer login
+				return;
+			}
+			ReplayedSession previous = closing.remove(message.getMessage());
+			if (previous != null) {
+				previous.run(previous.close); // el usuario vuelve a entrar, se cierra ya su sesion anterior
+			}
+			replayed = new ReplayedSession();
+			replayed.session = group.newSession(server, port, message.getMessage(), replayed);
+			sessions.put(record.getSession(), replayed);
+			replayed.connect();
+			return;
+		}
+		final ChatSession session = replayed.session;
+		if (message == null) {
+			if (replayed.close == null) {
+				replayed.close = session::disconnect;
+			}
+			closing.put(session.getUsername(), replayed);
+			return;
+		}
+		switch (message.getType()) {
+		case ACK:
+		case SHUTDOWN:
+			skipped++;
+			break;
+		case LOGOUT:
+			replayed.close = session::logout;
+			break;
+		default:
+			replayed.run(() -> {
+				ChatMessage copy = new ChatMessage(session.getId(), message.getType(), message.getMessage(),
+						message.getData());
+				if (copy.getType() == MessageType.MESSAGE) {
+					copy.setTrace(Trace.start());
+				}
+				session.send(copy);
+				sent.incrementAndGet();
+			});
+			break;
+		}
+	}
+
+	/**
+	 * Espera hasta que pasa {@link #QUIET_MILLIS} sin recibir nada, como mucho
+	 * {@link #DRAIN_MILLIS}.
+	 */
+	private void awaitQuiet() {
+		long deadline = System.nanoTime() + DRAIN_MILLIS * 1000000;
+		while (System.nanoTime() < deadline && System.nanoTime() - lastReceive < QUIET_MILLIS * 1000000) {
+			LockSupport.parkNanos(QUIET_MILLIS * 100000);
+		}
+	}
+
+	/**
+	 * Espera hasta el instante indicado.
+	 *
+	 * @param due nanoTime del instante
+	 */
+	private static void waitUntil(long due) {
+		long delay;
+		while ((delay = due - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(delay);
+		}
+	}
+
+	/**
+	 * Devuelve los resultados de la reproduccion.
+	 *
+	 * @return metricas por nombre
+	 */
+	public Properties results() {
+		double seconds = Math.max(elapsed, 1) / 1e9;
+		Properties results = new Properties();
+		results.setProperty("sessions", String.valueOf(sessions.size()));
+		results.setProperty("sent", String.valueOf(sent.get()));
+		results.setProperty("received", String.valueOf(received.get()));
+		results.setProperty("elapsedMillis", String.valueOf(elapsed / 1000000));
+		results.setProperty("sentPerSecond", String.format("%.0f", sent.get() / seconds));
+		results.setProperty("receivedPerSecond", String.format("%.0f", received.get() / seconds));
+		results.setProperty("latencyP50Micros", String.valueOf(latency.getPercentile(50) / 1000));
+		results.setProperty("latencyP99Micros", String.valueOf(latency.getPercentile(99) / 1000));
+		results.setProperty("latencyMaxMicros", String.valueOf(latency.getPercentile(100) / 1000));
+		return results;
+	}
+
+	/**
+	 * Muestra los resultados por pantalla.
+	 */
+	public void printReport() {
+		Properties results = results();
+		System.out.println("Replayed " + file + " at " + (speed > 0 ? speed + "x" : "max speed") + ": "
+				+ results.getProperty("sessions") + " sessions, " + failedLogins.get() + " failed logins, "
+				+ skipped + " frames skipped.");
+		System.out.println("Sent " + results.getProperty("sent") + " frames, received " + results.getProperty("received")
+				+ " messages in " + results.getProperty("elapsedMillis") + " ms: " + results.getProperty("sentPerSecond")
+				+ " sent/s, " + results.getProperty("receivedPerSecond") + " received/s.");
+		System.out.println(latency);
+	}
+
+	/**
+	 * Muestra la diferencia de cada metrica con la de una reproduccion anterior.
+	 *
+	 * @param baseline resultados anteriores
+	 */
+	public void printComparison(Properties baseline) {
+		Properties results = results();
+		System.out.println("Comparison with baseline (baseline -> current):");
+		for (String name : new String[] { "sentPerSecond", "receivedPerSecond", "latencyP50Micros", "latencyP99Micros",
+				"latencyMaxMicros" }) {
+			double before = Double.parseDouble(baseline.getProperty(name, "0"));
+			double now = Double.parseDouble(results.getProperty(name));
+			String change = before == 0 ? "n/a" : String.format("%+.1f%%", (now - before) * 100 / before);
+			System.out.println("  " + name + ": " + baseline.getProperty(name, "-") + " -> " + results.getProperty(name)
+					+ " (" + change + ")");
+		}
+	}
+
+	/**
+	 * Sesion reproducida. Las tramas que llegan antes de completar el login se
+	 * guardan y se envian en orden al completarse.
+	 */
+	private class ReplayedSession implements ChatMessageListener {
+
+		/** Sesion. */
+		private ChatSession session;
+
+		/** Cierre aplazado: LOGOUT si la sesion lo envio, desconexion si no. */
+		private Runnable close;
+
+		/** Acciones pendientes del login, null cuando ya se ha completado. */
+		private List<Runnable> pending = new ArrayList<Runnable>();
+
+		/**
+		 * Conecta la sesion y, al completar el login, ejecuta las acciones
+		 * pendientes.
+		 */
+		void connect() {
+			session.connect().whenComplete((welcome, e) -> {
+				if (e != null) {
+					failedLogins.incrementAndGet();
+				}
+				synchronized (this) {
+					if (e == null) {
+						for (Runnable action : pending) {
+							action.run();
+						}
+					}
+					pending = null;
+				}
+			});
+		}
+
+		/**
+		 * Ejecuta una accion en cuanto la sesion haya hecho login. Si el login
+		 * fallo, se descarta.
+		 *
+		 * @param action accion
+		 */
+		synchronized void run(Runnable action) {
+			if (pending != null) {
+				pending.add(action);
+			} else if (!session.isClosed()) {
+				action.run();
+			}
+		}
+
+		@Override
+		public void onMessage(ChatSession session, ChatMessage msg) {
+			received.incrementAndGet();
+			lastReceive = System.nanoTime();
+			long[] trace = msg.getTrace();
+			if (trace != null) {
+				latency.record(lastReceive - trace[Trace.SEND_NANOS]);
+			}
+		}
+
+		@Override
+		public void onMessagesLost(ChatSession session, long count) {
+			// las sesiones de la reproduccion no se retoman
+		}
+
+		@Override
+		public void onDisconnect(ChatSession session, Throwable cause) {
+			// el resultado se refleja en los mensajes recibidos
+		}
+	}
+
+	/**
+	 * Muestra un mensaje de ayuda.
+	 */
+	private static void printHelp() {
+		System.out.println("HELP:");
+		System.out.println("\tjava TrafficReplay <capture_file> [server] [port] [1|10|max] [--save <file>] "
+				+ "[--compare <file>]");
+	}
+
+	/**
+	 * Metodo principal de la herramienta.
+	 *
+	 * @param args captura, servidor, puerto, velocidad y opciones para guardar o
+	 *             comparar los resultados
+	 */
+	public static void main(String[] args) {
+		List<String> positional = new ArrayList<String>();
+		String save = null;
+		String compare = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--save") && i + 1 < args.length) {
+				save = args[++i];
+			} else if (args[i].equals("--compare") && i + 1 < args.length) {
+				compare = args[++i];
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.isEmpty() || positional.size() > 4) {
+			printHelp();
+			System.exit(1);
+		}
+		String server = positional.size() > 1 ? positional.get(1) : "localhost";
+		int port = positional.size() > 2 ? Integer.parseInt(positional.get(2)) : 1500;
+		String speedArg = positional.size() > 3 ? positional.get(3) : "1";
+		double speed = speedArg.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedArg);
+
+		TrafficReplay replay = new TrafficReplay(new File(positional.get(0)), server, port, speed);
+		try {
+			replay.run();
+			replay.printReport();
+			if (compare != null) {
+				Properties baseline = new Properties();
+				try (InputStream in = new FileInputStream(compare)) {
+					baseline.load(in);
+				}
+				replay.printComparison(baseline);
+			}
+			if (save != null) {
+				try (OutputStream out = new FileOutputStream(save)) {
+					replay.results().store(out, "TrafficReplay " + positional.get(0));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
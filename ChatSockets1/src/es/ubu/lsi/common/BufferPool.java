@@ -0,0 +1,348 @@
+package es.ubu.lsi.common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power of two size classes.
+ *
+ * Frames are encoded into buffers of the smallest class that fits them, from
+ * {@link #MIN_CLASS_SIZE} to {@link #MAX_CLASS_SIZE}. Released buffers are kept
+ * in a free list per class, up to {@link #RETAINED_BYTES_PER_CLASS} bytes each,
+ * so once the pool has warmed up acquiring and releasing allocate nothing and
+ * the frames live outside the heap. Larger requests get a buffer of their exact
+ * size that is dropped on release.
+ *
+ * With {@code -Dchat.pool.leakDetection=true} every acquire records its call
+ * stack, and a buffer that is garbage collected without being released is
+ * reported with the stack of the code that acquired it. It is meant for debug
+ * runs: recording the stacks is expensive.
+ *
+ * @author Jose Maria Santos
+ * @see PooledBuffer
+ */
+public class BufferPool {
+
+	/** Smallest size class, in bytes. */
+	public static final int MIN_CLASS_SIZE = 256;
+
+	/** Largest size class, in bytes. */
+	public static final int MAX_CLASS_SIZE = 1024 * 1024;
+
+	/** Bytes kept in the free list of each class. */
+	public static final int RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	/** Whether leak detection is enabled in this JVM. */
+	public static final boolean LEAK_DETECTION = Boolean.getBoolean("chat.pool.leakDetection");
+
+	/** Number of size classes. */
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE / MIN_CLASS_SIZE) + 1;
+
+	/** Free lists, by size class. */
+	private final FreeList[] classes = new FreeList[CLASSES];
+
+	/** Whether this pool tracks its buffers. */
+	private final boolean leakDetection;
+
+	/** Buffers acquired. */
+	private final AtomicLong acquires = new AtomicLong();
+
+	/** Buffers released back to the pool. */
+	private final AtomicLong releases = new AtomicLong();
+
+	/** Direct buffers created because the free list was empty. */
+	private final AtomicLong allocations = new AtomicLong();
+
+	/** Bytes of the direct buffers created. */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/** Requests larger than the largest class. */
+	private final AtomicLong oversize = new AtomicLong();
+
+	/** Buffers garbage collected without being released. */
+	private final AtomicLong leaks = new AtomicLong();
+
+	/** Allocation records of the buffers in use, with leak detection. */
+	private final Set<Leak> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+	/** Records of the leaked buffers, filled by the garbage collector. */
+	private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<PooledBuffer>();
+
+	/**
+	 * Constructor, leak detection as set by chat.pool.leakDetection.
+	 */
+	public BufferPool() {
+		this(LEAK_DETECTION);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param leakDetection whether to track the buffers to report leaks
+	 */
+	public BufferPool(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		for (int i = 0; i < CLASSES; i++) {
+			int size = MIN_CLASS_SIZE << i;
+			classes[i] = new FreeList(Math.max(4, RETAINED_BYTES_PER_CLASS / size));
+		}
+	}
+
+	/**
+	 * Acquires a buffer with one reference, position 0 and limit the requested
+	 * size. Its capacity may be larger.
+	 *
+	 * @param size bytes needed
+	 * @return buffer
+	 */
+	public PooledBuffer acquire(int size) {
+		if (leakDetection) {
+			reportLeaks();
+		}
+		acquires.incrementAndGet();
+		PooledBuffer pooled;
+		if (size > MAX_CLASS_SIZE) {
+			oversize.incrementAndGet();
+			pooled = allocate(-1, size);
+		} else {
+			int sizeClass = sizeClass(size);
+			pooled = classes[sizeClass].pop();
+			if (pooled == null) {
+				pooled = allocate(sizeClass, MIN_CLASS_SIZE << sizeClass);
+			}
+		}
+		if (leakDetection) {
+			pooled.leak = new Leak(pooled, collected, size);
+			tracked.add(pooled.leak);
+		}
+		return pooled.reset(size);
+	}
+
+	/**
+	 * Reports the buffers garbage collected without being released since the
+	 * last check. Only with leak detection enabled.
+	 *
+	 * @return leaks found
+	 */
+	public int reportLeaks() {
+		int found = 0;
+		Leak leak;
+		while ((leak = (Leak) collected.poll()) != null) {
+			if (tracked.remove(leak)) {
+				leaks.incrementAndGet();
+				found++;
+				System.err.println("LEAK: pooled buffer of " + leak.size
+						+ " bytes was garbage collected without being released.");
+				leak.site.printStackTrace();
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Gets the buffers acquired.
+	 *
+	 * @return acquires
+	 */
+	public long getAcquires() {
+		return acquires.get();
+	}
+
+	/**
+	 * Gets the buffers released back to the pool.
+	 *
+	 * @return releases
+	 */
+	public long getReleases() {
+		return releases.get();
+	}
+
+	/**
+	 * Gets the buffers acquired and not yet released.
+	 *
+	 * @return buffers in use, leaked buffers excluded
+	 */
+	public long getInUse() {
+		return acquires.get() - releases.get() - leaks.get();
+	}
+
+	/**
+	 * Gets the direct buffers created, the acquires that the free lists could
+	 * not serve.
+	 *
+	 * @return allocations
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * Gets the bytes of the direct buffers created.
+	 *
+	 * @return bytes allocated
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Gets the bytes waiting in the free lists.
+	 *
+	 * @return free bytes
+	 */
+	public long getFreeBytes() {
+		long bytes = 0;
+		for (int i = 0; i < CLASSES; i++) {
+			bytes += (long) classes[i].size() * (MIN_CLASS_SIZE << i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gets the requests larger than the largest class, which are never pooled.
+	 *
+	 * @return oversize requests
+	 */
+	public long getOversize() {
+		return oversize.get();
+	}
+
+	/**
+	 * Gets the buffers garbage collected without being released. Always 0
+	 * without leak detection.
+	 *
+	 * @return leaks
+	 */
+	public long getLeaks() {
+		return leaks.get();
+	}
+
+	/**
+	 * Returns a buffer whose last reference has been released.
+	 *
+	 * @param pooled buffer
+	 */
+	void recycle(PooledBuffer pooled) {
+		releases.incrementAndGet();
+		if (pooled.leak != null) {
+			tracked.remove(pooled.leak);
+			pooled.leak.clear();
+			pooled.leak = null;
+		}
+		if (pooled.sizeClass() >= 0) {
+			classes[pooled.sizeClass()].push(pooled);
+		}
+	}
+
+	/**
+	 * Creates a new direct buffer.
+	 *
+	 * @param sizeClass size class, -1 if not pooled
+	 * @param capacity  capacity in bytes
+	 * @return buffer
+	 */
+	private PooledBuffer allocate(int sizeClass, int capacity) {
+		allocations.incrementAndGet();
+		allocatedBytes.addAndGet(capacity);
+		return new PooledBuffer(this, sizeClass, capacity);
+	}
+
+	/**
+	 * Gets the smallest class that fits a size.
+	 *
+	 * @param size bytes, at most {@link #MAX_CLASS_SIZE}
+	 * @return size class
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	}
+
+	/**
+	 * Bounded stack of free buffers of one size class.
+	 */
+	private static final class FreeList {
+
+		/** Free buffers. */
+		private final PooledBuffer[] buffers;
+
+		/** Number of free buffers. */
+		private int count;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param capacity buffers kept at most
+		 */
+		FreeList(int capacity) {
+			this.buffers = new PooledBuffer[capacity];
+		}
+
+		/**
+		 * Takes a free buffer.
+		 *
+		 * @return buffer, null if the list is empty
+		 */
+		synchronized PooledBuffer pop() {
+			if (count == 0) {
+				return null;
+			}
+			PooledBuffer pooled = buffers[--count];
+			buffers[count] = null;
+			return pooled;
+		}
+
+		/**
+		 * Keeps a free buffer, or drops it if the list is full.
+		 *
+		 * @param pooled buffer
+		 */
+		synchronized void push(PooledBuffer pooled) {
+			if (count < buffers.length) {
+				buffers[count++] = pooled;
+			}
+		}
+
+		/**
+		 * Gets the number of free buffers.
+		 *
+		 * @return free buffers
+		 */
+		synchronized int size() {
+			return count;
+		}
+	}
+
+	/**
+	 * Allocation record of a buffer in use. It only refers weakly to the buffer,
+	 * so it is queued by the garbage collector if the buffer is dropped without
+	 * being released.
+	 */
+	static final class Leak extends WeakReference<PooledBuffer> {
+
+		/** Stack of the acquire. */
+		private final Throwable site;
+
+		/** Requested size. */
+		private final int size;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param pooled buffer acquired
+		 * @param queue  queue of collected buffers
+		 * @param size   requested size
+		 */
+		Leak(PooledBuffer pooled, ReferenceQueue<PooledBuffer> queue, int size) {
+			super(pooled, queue);
+			this.site = new Throwable("Buffer acquired here");
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package es.ubu.lsi.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact file with the frames received by the server, for replaying real
+ * traffic.
+ *
+ * The file starts with a magic number and the wall clock time of the capture.
+ * Each record holds the nanoseconds since the previous record, the capture
+ * session (one per connection), the {@link MessageType}, the text and the
+ * data of the message. The closing of a session is recorded too. Numbers are
+ * written as varints and texts as UTF-8, so a chat message takes a few bytes
+ * more than its text.
+ *
+ * @author Jose Maria Santos
+ */
+public final class CaptureFile {
+
+	/** Magic number, "CHC1". */
+	private static final int MAGIC = 0x43484331;
+
+	/** Record kind of a closed session. */
+	private static final int CLOSE = 0xFF;
+
+	/**
+	 * Private constructor, utility class.
+	 */
+	private CaptureFile() {
+	}
+
+	/**
+	 * Writes a capture. Safe to use from several threads.
+	 */
+	public static class Writer implements Closeable {
+
+		/** Output. */
+		private final DataOutputStream out;
+
+		/** nanoTime of the previous record. */
+		private long lastNanos;
+
+		/** Records written. */
+		private long records;
+
+		/**
+		 * Creates the file and writes the header.
+		 *
+		 * @param file capture file
+		 * @throws IOException if the file cannot be created
+		 */
+		public Writer(File file) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeLong(System.currentTimeMillis());
+			this.lastNanos = System.nanoTime();
+		}
+
+		/**
+		 * Records a frame received from a session.
+		 *
+		 * @param session capture session
+		 * @param msg     message received
+		 * @throws IOException if the record cannot be written
+		 */
+		public synchronized void write(int session, ChatMessage msg) throws IOException {
+			header(session, msg.getType().ordinal());
+			byte[] text = msg.getMessage() == null ? new byte[0] : msg.getMessage().getBytes(StandardCharsets.UTF_8);
+			writeVarint(text.length);
+			out.write(text);
+			byte[] data = msg.getData();
+			writeVarint(data == null ? 0 : data.length + 1);
+			if (data != null) {
+				out.write(data);
+			}
+		}
+
+		/**
+		 * Records the closing of a session.
+		 *
+		 * @param session capture session
+		 * @throws IOException if the record cannot be written
+		 */
+		public synchronized void writeClose(int session) throws IOException {
+			header(session, CLOSE);
+		}
+
+		/**
+		 * Gets the number of records written.
+		 *
+		 * @return records
+		 */
+		public synchronized long getRecords() {
+			return records;
+		}
+
+		/**
+		 * Writes the buffered records to the file.
+		 *
+		 * @throws IOException if the file cannot be written
+		 */
+		public synchronized void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			out.close();
+		}
+
+		/**
+		 * Writes the common part of a record.
+		 *
+		 * @param session capture session
+		 * @param kind    message type ordinal or {@link CaptureFile#CLOSE}
+		 * @throws IOException if the record cannot be written
+		 */
+		private void header(int session, int kind) throws IOException {
+			long now = System.nanoTime();
+			writeVarint(now - lastNanos);
+			lastNanos = now;
+			writeVarint(session);
+			out.writeByte(kind);
+			records++;
+		}
+
+		/**
+		 * Writes a non-negative number, 7 bits per byte.
+		 *
+		 * @param value number
+		 * @throws IOException if it cannot be written
+		 */
+		private void writeVarint(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		}
+	}
+
+	/**
+	 * Reads a capture, record by record.
+	 */
+	public static class Reader implements Closeable {
+
+		/** Input. */
+		private final DataInputStream in;
+
+		/** Wall clock time of the capture. */
+		private final long startMillis;
+
+		/** Nanoseconds since the start of the previous record. */
+		private long nanos;
+
+		/**
+		 * Opens the file and reads the header.
+		 *
+		 * @param file capture file
+		 * @throws IOException if the file is not a capture
+		 */
+		public Reader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			if (in.readInt() != MAGIC) {
+				in.close();
+				throw new IOException(file + " is not a capture file");
+			}
+			this.startMillis = in.readLong();
+		}
+
+		/**
+		 * Gets the wall clock time of the capture.
+		 *
+		 * @return milliseconds
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return record, or null at the end of the capture
+		 * @throws IOException if the file is corrupt
+		 */
+		public Record next() throws IOException {
+			int first = in.read();
+			if (first < 0) {
+				return null;
+			}
+			nanos += readVarint(first);
+			int session = (int) readVarint(in.readUnsignedByte());
+			int kind = in.readUnsignedByte();
+			if (kind == CLOSE) {
+				return new Record(nanos, session, null);
+			}
+			byte[] text = new byte[(int) readVarint(in.readUnsignedByte())];
+			in.readFully(text);
+			int dataLength = (int) readVarint(in.readUnsignedByte());
+			byte[] data = null;
+			if (dataLength > 0) {
+				data = new byte[dataLength - 1];
+				in.readFully(data);
+			}
+			return new Record(nanos, session, new ChatMessage(session, MessageType.values()[kind],
+					new String(text, StandardCharsets.UTF_8), data));
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Reads a varint whose first byte has already been read.
+		 *
+		 * @param first first byte
+		 * @return number
+		 * @throws IOException if the file ends in the middle
+		 */
+		private long readVarint(int first) throws IOException {
+			long value = first & 0x7F;
+			int shift = 7;
+			int b = first;
+			while ((b & 0x80) != 0) {
+				b = in.read();
+				if (b < 0) {
+					throw new EOFException("Truncated capture");
+				}
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Record of a capture.
+	 */
+	public static class Record {
+
+		/** Nanoseconds since the start of the capture. */
+		private final long nanos;
+
+		/** Capture session. */
+		private final int session;
+
+		/** Message received, null if the session was closed. */
+		private final ChatMessage message;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param nanos   nanoseconds since the start
+		 * @param session capture session
+		 * @param message message, null for a close
+		 */
+		Record(long nanos, int session, ChatMessage message) {
+			this.nanos = nanos;
+			this.session = session;
+			this.message = message;
+		}
+
+		/**
+		 * Gets the time of the record.
+		 *
+		 * @return nanoseconds since the start of the capture
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * Gets the capture session, one per connection.
+		 *
+		 * @return session
+		 */
+		public int getSession() {
+			return session;
+		}
+
+		/**
+		 * Gets the message received. The first message of a session is its login.
+		 *
+		 * @return message, null if the record is the closing of the session
+		 */
+		public ChatMessage getMessage() {
+			return message;
+		}
+	}
+}
@@ -23,6 +23,12 @@ public class ChatMessage implements Serializable {
 	/** Client id. */
 	private int id;
 
+	/** Binary payload, only used by file transfer frames. */
+	private byte[] data;
+
+	/** Latency trace, null unless tracing is enabled. */
+	private long[] trace;
+
 	/**
 	 * Constructor.
 	 * 
@@ -36,6 +42,19 @@ public class ChatMessage implements Serializable {
 		this.setMessage(message);
 	}
 
+	/**
+	 * Constructor with binary payload.
+	 * 
+	 * @param id      client id
+	 * @param type    type
+	 * @param message message
+	 * @param data    binary payload
+	 */
+	public ChatMessage(int id, MessageType type, String message, byte[] data) {
+		this(id, type, message);
+		this.setData(data);
+	}
+
 	/**
 	 * Gets type.
 	 * 
@@ -96,4 +115,44 @@ public class ChatMessage implements Serializable {
 	private void setId(int id) {
 		this.id = id;
 	}
+
+	/**
+	 * Gets binary payload.
+	 * 
+	 * @return payload, null if the message has none
+	 * @see #setData(byte[])
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Sets binary payload.
+	 * 
+	 * @param data payload
+	 * @see #getData()
+	 */
+	public void setData(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * Gets latency trace.
+	 * 
+	 * @return trace, null if the message is not traced
+	 * @see Trace
+	 */
+	public long[] getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Sets latency trace.
+	 * 
+	 * @param trace trace
+	 * @see #getTrace()
+	 */
+	public void setTrace(long[] trace) {
+		this.trace = trace;
+	}
 }
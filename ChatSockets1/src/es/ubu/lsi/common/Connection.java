@@ -0,0 +1,40 @@
+package es.ubu.lsi.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bidirectional byte stream between a client and the server.
+ *
+ * Closing either end makes the peer read end of stream and fail its writes.
+ *
+ * @author Jose Maria Santos
+ * @see Transport
+ */
+public interface Connection extends Closeable {
+
+	/**
+	 * Gets the stream of bytes sent by the peer.
+	 *
+	 * @return input stream
+	 * @throws IOException if the connection is closed
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Gets the stream of bytes sent to the peer.
+	 *
+	 * @return output stream
+	 * @throws IOException if the connection is closed
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Gets a short description of the peer, for logs and thread names.
+	 *
+	 * @return peer address
+	 */
+	String getRemoteAddress();
+}
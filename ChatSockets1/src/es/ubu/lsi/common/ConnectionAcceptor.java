@@ -0,0 +1,27 @@
+package es.ubu.lsi.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server end of a {@link Transport}, accepts the connections of the clients.
+ *
+ * @author Jose Maria Santos
+ */
+public interface ConnectionAcceptor extends Closeable {
+
+	/**
+	 * Waits for the next connection.
+	 *
+	 * @return new connection
+	 * @throws IOException if the acceptor is closed
+	 */
+	Connection accept() throws IOException;
+
+	/**
+	 * Gets a short description of the local address, for logs.
+	 *
+	 * @return local address
+	 */
+	String getLocalAddress();
+}
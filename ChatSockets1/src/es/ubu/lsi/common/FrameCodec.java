@@ -0,0 +1,304 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire format of a {@link ChatMessage}.
+ *
+ * A frame is the length of the whole frame, the type, the id, the text as
+ * UTF-8, the latency trace and the binary payload:
+ *
+ * <pre>
+ * int length | byte type | int id | int textLength | text | byte traceLength | long[] trace | int dataLength | data
+ * </pre>
+ *
+ * A null text or payload is written with length -1. The payload goes last, so
+ * a file chunk can be written as a header followed by the bytes read straight
+ * from the file. Encoding writes the text char by char into the destination
+ * buffer, without intermediate arrays, and a frame can be read without
+ * decoding it, for example to take a field of its trace.
+ *
+ * @author Jose Maria Santos
+ */
+public final class FrameCodec {
+
+	/** Largest frame accepted, in bytes. */
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+	/** Length of the fixed fields of a frame, text and payload excluded. */
+	private static final int FIXED_LENGTH = 4 + 1 + 4 + 4 + 1 + 4;
+
+	/** Offset of the text length. */
+	private static final int TEXT_LENGTH_OFFSET = 4 + 1 + 4;
+
+	/** Largest trace accepted, in fields. */
+	private static final int MAX_TRACE_LENGTH = 16;
+
+	/** Message types by ordinal. */
+	private static final MessageType[] TYPES = MessageType.values();
+
+	/**
+	 * Private constructor, utility class.
+	 */
+	private FrameCodec() {
+	}
+
+	/**
+	 * Gets the length of the frame of a message.
+	 *
+	 * @param msg message
+	 * @return bytes
+	 */
+	public static int encodedLength(ChatMessage msg) {
+		long[] trace = msg.getTrace();
+		byte[] data = msg.getData();
+		return encodedLength(msg.getMessage(), trace == null ? 0 : trace.length, data == null ? 0 : data.length);
+	}
+
+	/**
+	 * Gets the length of a frame.
+	 *
+	 * @param text        text, may be null
+	 * @param traceLength fields of the trace
+	 * @param dataLength  bytes of the payload
+	 * @return bytes
+	 */
+	public static int encodedLength(String text, int traceLength, int dataLength) {
+		return FIXED_LENGTH + utf8Length(text) + 8 * traceLength + dataLength;
+	}
+
+	/**
+	 * Writes the frame of a message at the position of the buffer, which ends up
+	 * after the frame.
+	 *
+	 * @param msg message
+	 * @param dst destination, with at least {@link #encodedLength(ChatMessage)}
+	 *            bytes remaining
+	 */
+	public static void encode(ChatMessage msg, ByteBuffer dst) {
+		long[] trace = msg.getTrace();
+		byte[] data = msg.getData();
+		int traceLength = trace == null ? 0 : trace.length;
+		int dataLength = data == null ? 0 : data.length;
+		dst.putInt(encodedLength(msg.getMessage(), traceLength, dataLength));
+		dst.put((byte) msg.getType().ordinal());
+		dst.putInt(msg.getId());
+		putText(msg.getMessage(), dst);
+		dst.put((byte) traceLength);
+		for (int i = 0; i < traceLength; i++) {
+			dst.putLong(trace[i]);
+		}
+		if (data == null) {
+			dst.putInt(-1);
+		} else {
+			dst.putInt(data.length);
+			dst.put(data);
+		}
+	}
+
+	/**
+	 * Writes a frame without trace up to the payload, which the caller must
+	 * write next.
+	 *
+	 * @param id         id
+	 * @param type       type
+	 * @param text       text, may be null
+	 * @param dataLength bytes of the payload that follows, -1 for no payload
+	 * @param dst        destination
+	 */
+	public static void encodeHeader(int id, MessageType type, String text, int dataLength, ByteBuffer dst) {
+		dst.putInt(encodedLength(text, 0, Math.max(0, dataLength)));
+		dst.put((byte) type.ordinal());
+		dst.putInt(id);
+		putText(text, dst);
+		dst.put((byte) 0);
+		dst.putInt(dataLength);
+	}
+
+	/**
+	 * Reads a field of the trace of an encoded frame, with absolute gets.
+	 *
+	 * @param frame buffer with a frame at position 0
+	 * @param field field, one of the {@link Trace} constants
+	 * @return value, 0 if the frame has no trace
+	 */
+	public static long traceField(ByteBuffer frame, int field) {
+		int textLength = Math.max(0, frame.getInt(TEXT_LENGTH_OFFSET));
+		int traceOffset = TEXT_LENGTH_OFFSET + 4 + textLength;
+		if (field >= frame.get(traceOffset)) {
+			return 0;
+		}
+		return frame.getLong(traceOffset + 1 + 8 * field);
+	}
+
+	/**
+	 * Decodes the frame starting at the given offset, with absolute gets.
+	 *
+	 * @param src    buffer holding the whole frame
+	 * @param offset start of the frame
+	 * @return message
+	 * @throws IOException if the frame is corrupt
+	 */
+	public static ChatMessage decode(ByteBuffer src, int offset) throws IOException {
+		int length = src.getInt(offset);
+		int end = offset + length;
+		if (length < FIXED_LENGTH || end > src.limit() || end < 0) {
+			throw new IOException("Corrupt frame: length " + length);
+		}
+		int kind = src.get(offset + 4);
+		if (kind < 0 || kind >= TYPES.length) {
+			throw new IOException("Corrupt frame: type " + kind);
+		}
+		int id = src.getInt(offset + 5);
+		int pos = offset + TEXT_LENGTH_OFFSET;
+		int textLength = src.getInt(pos);
+		pos += 4;
+		String text = null;
+		if (textLength >= 0) {
+			check(pos, textLength, end);
+			text = new String(bytes(src, pos, textLength), arrayOffset(src, pos), textLength, StandardCharsets.UTF_8);
+			pos += textLength;
+		}
+		check(pos, 1, end);
+		int traceLength = src.get(pos++);
+		long[] trace = null;
+		if (traceLength > 0) {
+			if (traceLength > MAX_TRACE_LENGTH) {
+				throw new IOException("Corrupt frame: trace " + traceLength);
+			}
+			check(pos, 8 * traceLength, end);
+			trace = new long[traceLength];
+			for (int i = 0; i < traceLength; i++, pos += 8) {
+				trace[i] = src.getLong(pos);
+			}
+		}
+		check(pos, 4, end);
+		int dataLength = src.getInt(pos);
+		pos += 4;
+		byte[] data = null;
+		if (dataLength >= 0) {
+			check(pos, dataLength, end);
+			data = new byte[dataLength];
+			System.arraycopy(bytes(src, pos, dataLength), arrayOffset(src, pos), data, 0, dataLength);
+		}
+		ChatMessage msg = new ChatMessage(id, TYPES[kind], text, data);
+		msg.setTrace(trace);
+		return msg;
+	}
+
+	/**
+	 * Gets the number of UTF-8 bytes of a text, as written by
+	 * {@link #putText(String, ByteBuffer)}.
+	 *
+	 * @param text text, may be null
+	 * @return bytes
+	 */
+	private static int utf8Length(String text) {
+		if (text == null) {
+			return 0;
+		}
+		int length = text.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x800) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+					bytes += 2; // four bytes for two chars
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					bytes += 2;
+				}
+			} else if (c >= 0x80) {
+				bytes++;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the length and the UTF-8 bytes of a text. An unpaired surrogate is
+	 * written as '?', like {@link String#getBytes(java.nio.charset.Charset)}.
+	 *
+	 * @param text text, may be null
+	 * @param dst  destination
+	 */
+	private static void putText(String text, ByteBuffer dst) {
+		if (text == null) {
+			dst.putInt(-1);
+			return;
+		}
+		dst.putInt(utf8Length(text));
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | (c >> 6)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				dst.put((byte) (0xF0 | (codePoint >> 18)));
+				dst.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				dst.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				dst.put((byte) '?');
+			} else {
+				dst.put((byte) (0xE0 | (c >> 12)));
+				dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Gets an array with the given bytes of the buffer: its own array if it has
+	 * one, or a copy.
+	 *
+	 * @param src    buffer
+	 * @param offset start
+	 * @param length bytes
+	 * @return array
+	 * @see #arrayOffset(ByteBuffer, int)
+	 */
+	private static byte[] bytes(ByteBuffer src, int offset, int length) {
+		if (src.hasArray()) {
+			return src.array();
+		}
+		byte[] copy = new byte[length];
+		for (int i = 0; i < length; i++) {
+			copy[i] = src.get(offset + i);
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the offset in {@link #bytes(ByteBuffer, int, int)} of a position of
+	 * the buffer.
+	 *
+	 * @param src    buffer
+	 * @param offset position
+	 * @return offset in the array
+	 */
+	private static int arrayOffset(ByteBuffer src, int offset) {
+		return src.hasArray() ? src.arrayOffset() + offset : 0;
+	}
+
+	/**
+	 * Checks that a field fits in the frame.
+	 *
+	 * @param pos    start of the field
+	 * @param length length of the field
+	 * @param end    end of the frame
+	 * @throws IOException if the field goes past the end
+	 */
+	private static void check(int pos, int length, int end) throws IOException {
+		if (length < 0 || pos + length > end) {
+			throw new IOException("Corrupt frame: field past the end");
+		}
+	}
+}
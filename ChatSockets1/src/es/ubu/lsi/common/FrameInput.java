@@ -0,0 +1,148 @@
+package es.ubu.lsi.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered reader of frames for one connection.
+ *
+ * The stream is read in bulk into a buffer that is reused for the whole life of
+ * the connection, and each frame is decoded in place from that buffer. The
+ * length of a frame is checked before reading it, so a corrupt or hostile peer
+ * cannot make the reader allocate more than the given maximum. The buffer grows
+ * for a large frame and goes back to {@link #BUFFER_SIZE} once the stream has
+ * nothing more to read, so an idle connection does not keep it. Not safe for
+ * use by several threads.
+ *
+ * @author Jose Maria Santos
+ * @see FrameCodec
+ */
+public class FrameInput {
+
+	/** Initial size of the buffer, in bytes. */
+	public static final int BUFFER_SIZE = 8 * 1024;
+
+	/** Underlying stream. */
+	private final InputStream in;
+
+	/** Largest frame accepted. */
+	private final int maxFrameLength;
+
+	/** Buffer, grows to fit a large frame until the stream goes idle. */
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	/** View of the buffer, for the big-endian fields. */
+	private ByteBuffer view = ByteBuffer.wrap(buffer);
+
+	/** Position of the next byte to decode. */
+	private int pos;
+
+	/** End of the bytes read. */
+	private int limit;
+
+	/**
+	 * Constructor, accepts frames up to {@link FrameCodec#MAX_FRAME_LENGTH}.
+	 *
+	 * @param in underlying stream, no need to buffer it
+	 */
+	public FrameInput(InputStream in) {
+		this(in, FrameCodec.MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in             underlying stream, no need to buffer it
+	 * @param maxFrameLength largest frame accepted, in bytes
+	 */
+	public FrameInput(InputStream in, int maxFrameLength) {
+		this.in = in;
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Reads a long, the sequence number that precedes each frame sent by the
+	 * server.
+	 *
+	 * @return value
+	 * @throws IOException if the stream ends or fails
+	 */
+	public long readLong() throws IOException {
+		fill(8);
+		long value = view.getLong(pos);
+		pos += 8;
+		return value;
+	}
+
+	/**
+	 * Reads and decodes a frame.
+	 *
+	 * @return message
+	 * @throws IOException if the stream ends or fails, or the frame is corrupt
+	 *                     or too large
+	 */
+	public ChatMessage readMessage() throws IOException {
+		fill(4);
+		int length = view.getInt(pos);
+		if (length <= 4 || length > maxFrameLength) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		fill(length);
+		view.limit(pos + length);
+		try {
+			return FrameCodec.decode(view, pos);
+		} finally {
+			view.limit(view.capacity());
+			pos += length;
+		}
+	}
+
+	/**
+	 * Gets the current size of the buffer.
+	 *
+	 * @return size in bytes
+	 */
+	int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Makes sure the buffer holds the given bytes from the current position,
+	 * reading from the stream as needed.
+	 *
+	 * @param length bytes needed
+	 * @throws IOException if the stream ends first or fails
+	 */
+	private void fill(int length) throws IOException {
+		if (limit - pos >= length) {
+			return;
+		}
+		if (pos == limit && buffer.length > BUFFER_SIZE && length <= BUFFER_SIZE && in.available() == 0) {
+			// About to wait for the peer: a burst of large frames is over
+			buffer = new byte[BUFFER_SIZE];
+			view = ByteBuffer.wrap(buffer);
+			pos = 0;
+			limit = 0;
+		} else if (buffer.length < length) {
+			byte[] larger = new byte[length];
+			System.arraycopy(buffer, pos, larger, 0, limit - pos);
+			buffer = larger;
+			view = ByteBuffer.wrap(buffer);
+			limit -= pos;
+			pos = 0;
+		} else if (pos + length > buffer.length) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (limit - pos < length) {
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				throw new EOFException("Connection closed");
+			}
+			limit += n;
+		}
+	}
+}
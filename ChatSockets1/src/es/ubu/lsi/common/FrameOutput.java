@@ -0,0 +1,168 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered writer of frames for one connection.
+ *
+ * Frames are encoded, or copied if they are already encoded in a
+ * {@link PooledBuffer}, into a single batch buffer that is reused for the whole
+ * life of the connection, and the batch is written to the stream when it is
+ * full or on {@link #flush()}. Writing a frame allocates nothing. A message
+ * larger than the batch grows it, and the next flush brings it back to
+ * {@link #BATCH_SIZE}, so an idle connection does not keep it. Not safe for use
+ * by several threads.
+ *
+ * @author Jose Maria Santos
+ * @see FrameCodec
+ */
+public class FrameOutput {
+
+	/** Initial size of the batch buffer, in bytes. */
+	public static final int BATCH_SIZE = 64 * 1024;
+
+	/** Underlying stream. */
+	private final OutputStream out;
+
+	/** Batch buffer, grows to fit a large message until the next flush. */
+	private byte[] batch = new byte[BATCH_SIZE];
+
+	/** View of the batch buffer, for the big-endian fields. */
+	private ByteBuffer view = ByteBuffer.wrap(batch);
+
+	/** Bytes written to the underlying stream. */
+	private volatile long bytesWritten;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out underlying stream, no need to buffer it
+	 */
+	public FrameOutput(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes a long, the sequence number that precedes each frame sent by the
+	 * server.
+	 *
+	 * @param value value
+	 * @throws IOException if the batch cannot be written
+	 */
+	public void writeLong(long value) throws IOException {
+		reserve(8);
+		view.putLong(value);
+	}
+
+	/**
+	 * Encodes a message.
+	 *
+	 * @param msg message
+	 * @throws IOException if the message is too large or the batch cannot be
+	 *                     written
+	 */
+	public void writeMessage(ChatMessage msg) throws IOException {
+		int length = FrameCodec.encodedLength(msg);
+		if (length > FrameCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Message too large: " + length + " bytes");
+		}
+		reserve(length);
+		FrameCodec.encode(msg, view);
+	}
+
+	/**
+	 * Copies an encoded frame. The frame is only read with absolute gets, so it
+	 * can be shared with other connections writing it at the same time.
+	 *
+	 * @param frame buffer with the frame from position 0 to its limit
+	 * @throws IOException if the batch cannot be written
+	 */
+	public void writeFrame(ByteBuffer frame) throws IOException {
+		int length = frame.limit();
+		int copied = 0;
+		while (copied < length) {
+			if (!view.hasRemaining()) {
+				drain();
+			}
+			int pos = view.position();
+			int n = Math.min(length - copied, view.remaining());
+			int i = 0;
+			for (; i + 8 <= n; i += 8) {
+				view.putLong(pos + i, frame.getLong(copied + i));
+			}
+			for (; i < n; i++) {
+				batch[pos + i] = frame.get(copied + i);
+			}
+			view.position(pos + n);
+			copied += n;
+		}
+	}
+
+	/**
+	 * Writes the batch and flushes the underlying stream. A batch grown for a
+	 * large message goes back to {@link #BATCH_SIZE}.
+	 *
+	 * @throws IOException if the batch cannot be written
+	 */
+	public void flush() throws IOException {
+		drain();
+		if (batch.length > BATCH_SIZE) {
+			batch = new byte[BATCH_SIZE];
+			view = ByteBuffer.wrap(batch);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Gets the bytes written to the underlying stream, the batch excluded.
+	 *
+	 * @return bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Gets the current size of the batch buffer.
+	 *
+	 * @return size in bytes
+	 */
+	int capacity() {
+		return batch.length;
+	}
+
+	/**
+	 * Makes room for a field or a frame that must be contiguous in the batch:
+	 * writes the batch if it does not fit and grows it if it would not fit
+	 * either when empty.
+	 *
+	 * @param length bytes needed
+	 * @throws IOException if the batch cannot be written
+	 */
+	private void reserve(int length) throws IOException {
+		if (view.remaining() >= length) {
+			return;
+		}
+		drain();
+		if (batch.length < length) {
+			batch = new byte[length];
+			view = ByteBuffer.wrap(batch);
+		}
+	}
+
+	/**
+	 * Writes the batch to the underlying stream, without flushing it.
+	 *
+	 * @throws IOException if the stream fails
+	 */
+	private void drain() throws IOException {
+		int length = view.position();
+		if (length > 0) {
+			out.write(batch, 0, length);
+			bytesWritten += length;
+			view.clear();
+		}
+	}
+}
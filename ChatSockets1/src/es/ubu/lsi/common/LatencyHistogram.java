@@ -0,0 +1,106 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two buckets.
+ *
+ * Bucket {@code i} counts the samples in {@code [2^(i-1), 2^i)} nanoseconds,
+ * so percentiles are accurate to a factor of two, which is enough to tell
+ * which stage dominates.
+ *
+ * @author Jose Maria Santos
+ */
+public class LatencyHistogram {
+
+	/** Number of buckets, one per bit of a long. */
+	private static final int BUCKETS = 64;
+
+	/** Histogram name. */
+	private final String name;
+
+	/** Sample count per bucket. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	/** Total samples. */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of all samples, in nanoseconds. */
+	private final AtomicLong total = new AtomicLong();
+
+	/** Largest sample, in nanoseconds. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name histogram name
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records a sample. Negative samples, caused by clock differences, are
+	 * ignored.
+	 *
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// retry, another thread raised the maximum
+		}
+	}
+
+	/**
+	 * Gets the number of samples.
+	 *
+	 * @return sample count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the upper bound of the bucket holding the given percentile.
+	 *
+	 * @param percentile percentile between 0 and 100
+	 * @return latency in nanoseconds, 0 if there are no samples
+	 */
+	public long getPercentile(double percentile) {
+		long samples = count.get();
+		if (samples == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(samples * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return i == 0 ? 0 : Math.min(1L << Math.min(i, 62), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets a one line summary in microseconds.
+	 *
+	 * @return summary
+	 */
+	@Override
+	public String toString() {
+		long samples = count.get();
+		long mean = samples == 0 ? 0 : total.get() / samples;
+		return String.format("%s: n=%d mean=%dus p50=%dus p99=%dus max=%dus", name, samples, mean / 1000,
+				getPercentile(50) / 1000, getPercentile(99) / 1000, max.get() / 1000);
+	}
+}
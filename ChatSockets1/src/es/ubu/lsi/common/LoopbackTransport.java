@@ -0,0 +1,312 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory transport for tests and benchmarks.
+ *
+ * Each connection is a pair of bounded pipes, one per direction, so the server
+ * and the clients exchange exactly the same bytes as over TCP but without
+ * sockets, ports or kernel buffers. A full pipe blocks the writer like a full
+ * socket buffer does. Ports are only meaningful within one instance, so
+ * several servers can run in the same JVM with their own transport.
+ *
+ * @author Jose Maria Santos
+ */
+public class LoopbackTransport implements Transport {
+
+	/** Bytes buffered by each pipe. */
+	public static final int PIPE_SIZE = 64 * 1024;
+
+	/** Acceptors by port. */
+	private final Map<Integer, Acceptor> acceptors = new ConcurrentHashMap<Integer, Acceptor>();
+
+	/** Connection counter, for the addresses. */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/** Marker queued when an acceptor is closed. */
+	private static final PipeConnection CLOSED = new PipeConnection(new Pipe(), new Pipe(), "closed");
+
+	@Override
+	public ConnectionAcceptor listen(int port) throws IOException {
+		Acceptor acceptor = new Acceptor(port);
+		if (acceptors.putIfAbsent(port, acceptor) != null) {
+			throw new BindException("Port " + port + " already in use");
+		}
+		return acceptor;
+	}
+
+	@Override
+	public Connection connect(String host, int port) throws IOException {
+		Acceptor acceptor = acceptors.get(port);
+		if (acceptor == null) {
+			throw new ConnectException("Connection refused: loopback:" + port);
+		}
+		int number = connections.incrementAndGet();
+		Pipe up = new Pipe();
+		Pipe down = new Pipe();
+		acceptor.queue.add(new PipeConnection(up, down, "loopback-client-" + number));
+		return new PipeConnection(down, up, "loopback:" + port);
+	}
+
+	/**
+	 * Acceptor of a port, the connections wait in a queue until accepted.
+	 */
+	private class Acceptor implements ConnectionAcceptor {
+
+		/** Port. */
+		private final int port;
+
+		/** Connections not yet accepted, {@link LoopbackTransport#CLOSED} after closing. */
+		private final BlockingQueue<PipeConnection> queue = new LinkedBlockingQueue<PipeConnection>();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param port port
+		 */
+		Acceptor(int port) {
+			this.port = port;
+		}
+
+		@Override
+		public Connection accept() throws IOException {
+			try {
+				PipeConnection connection = queue.take();
+				if (connection == CLOSED) {
+					queue.add(CLOSED); // for any other thread waiting
+					throw new SocketException("Acceptor closed");
+				}
+				return connection;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while accepting");
+			}
+		}
+
+		@Override
+		public String getLocalAddress() {
+			return "loopback:" + port;
+		}
+
+		@Override
+		public void close() {
+			if (acceptors.remove(port, this)) {
+				PipeConnection pending;
+				while ((pending = queue.poll()) != null) {
+					pending.close();
+				}
+				queue.add(CLOSED);
+			}
+		}
+	}
+
+	/**
+	 * One end of a connection: reads from one pipe and writes to the other.
+	 */
+	private static class PipeConnection implements Connection {
+
+		/** Input stream, reads the pipe written by the peer. */
+		private final InputStream input;
+
+		/** Output stream, writes the pipe read by the peer. */
+		private final OutputStream output;
+
+		/** Pipe read by this end. */
+		private final Pipe in;
+
+		/** Pipe written by this end. */
+		private final Pipe out;
+
+		/** Peer address. */
+		private final String remote;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param in     pipe read by this end
+		 * @param out    pipe written by this end
+		 * @param remote peer address
+		 */
+		PipeConnection(final Pipe in, final Pipe out, String remote) {
+			this.in = in;
+			this.out = out;
+			this.remote = remote;
+			this.input = new InputStream() {
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return in.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return in.read(b, off, len);
+				}
+
+				@Override
+				public int available() {
+					return in.available();
+				}
+
+				@Override
+				public void close() {
+					PipeConnection.this.close();
+				}
+			};
+			this.output = new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					PipeConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return output;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return remote;
+		}
+
+		@Override
+		public void close() {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Bounded byte pipe over a ring buffer. Once closed the reader still gets the
+	 * buffered bytes and then end of stream, and the writer fails.
+	 */
+	private static final class Pipe {
+
+		/** Ring buffer. */
+		private final byte[] buffer = new byte[PIPE_SIZE];
+
+		/** Position of the next byte to read. */
+		private int readPos;
+
+		/** Buffered bytes. */
+		private int count;
+
+		/** Whether the pipe is closed. */
+		private boolean closed;
+
+		/**
+		 * Writes bytes, blocking while the pipe is full.
+		 *
+		 * @param b   bytes
+		 * @param off offset
+		 * @param len length
+		 * @throws IOException if the pipe is closed
+		 */
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (count == buffer.length && !closed) {
+					await();
+				}
+				if (closed) {
+					throw new SocketException("Pipe closed");
+				}
+				int writePos = (readPos + count) % buffer.length;
+				int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+				System.arraycopy(b, off, buffer, writePos, n);
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Reads bytes, blocking while the pipe is empty.
+		 *
+		 * @param b   destination
+		 * @param off offset
+		 * @param len maximum length
+		 * @return bytes read, -1 at end of stream
+		 * @throws IOException if interrupted
+		 */
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (count == 0 && !closed) {
+				await();
+			}
+			if (count == 0) {
+				return -1;
+			}
+			int n = Math.min(len, Math.min(count, buffer.length - readPos));
+			System.arraycopy(buffer, readPos, b, off, n);
+			readPos = (readPos + n) % buffer.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		/**
+		 * Gets the buffered bytes.
+		 *
+		 * @return bytes that can be read without blocking
+		 */
+		synchronized int available() {
+			return count;
+		}
+
+		/**
+		 * Closes the pipe and wakes up the reader and the writer.
+		 */
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for a change in the pipe.
+		 *
+		 * @throws InterruptedIOException if interrupted
+		 */
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted pipe operation");
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package es.ubu.lsi.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary frames of the offline mailbox.
+ *
+ * A direct message to an offline user is stored by the server as one frame:
+ * send time, sender and text. The frames of a mailbox are kept back to back,
+ * and at login they are delivered as they are in the data of a single
+ * {@link MessageType#MAILBOX} message, so the server never decodes them again.
+ *
+ * @author Jose Maria Santos
+ */
+public final class MailboxFrames {
+
+	/**
+	 * Private constructor, utility class.
+	 */
+	private MailboxFrames() {
+	}
+
+	/**
+	 * Encodes a direct message.
+	 *
+	 * @param millis send time, wall clock milliseconds
+	 * @param from   sender
+	 * @param text   text
+	 * @return frame
+	 * @throws IOException if the sender or the text are too long to encode
+	 */
+	public static byte[] encode(long millis, String from, String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + from.length() + text.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(millis);
+		out.writeUTF(from);
+		out.writeUTF(text);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Gets the send time of the frame starting at the given offset.
+	 *
+	 * @param data   frames
+	 * @param offset start of the frame
+	 * @return send time, wall clock milliseconds
+	 */
+	public static long time(byte[] data, int offset) {
+		long millis = 0;
+		for (int i = 0; i < 8; i++) {
+			millis = (millis << 8) | (data[offset + i] & 0xFF);
+		}
+		return millis;
+	}
+
+	/**
+	 * Gets the length of the frame starting at the given offset.
+	 *
+	 * @param data   frames
+	 * @param offset start of the frame
+	 * @return length in bytes
+	 */
+	public static int length(byte[] data, int offset) {
+		int from = 8 + offset;
+		int text = from + 2 + unsignedShort(data, from);
+		return text + 2 + unsignedShort(data, text) - offset;
+	}
+
+	/**
+	 * Decodes a sequence of frames.
+	 *
+	 * @param data frames back to back
+	 * @return messages in the order they were sent
+	 * @throws IOException if the data are truncated
+	 */
+	public static List<Entry> decode(byte[] data) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		while (in.available() > 0) {
+			entries.add(new Entry(in.readLong(), in.readUTF(), in.readUTF()));
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads a big-endian unsigned short.
+	 *
+	 * @param data   bytes
+	 * @param offset position
+	 * @return value
+	 */
+	private static int unsignedShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Decoded direct message.
+	 */
+	public static class Entry {
+
+		/** Send time, wall clock milliseconds. */
+		private final long millis;
+
+		/** Sender. */
+		private final String from;
+
+		/** Text. */
+		private final String text;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param millis send time
+		 * @param from   sender
+		 * @param text   text
+		 */
+		Entry(long millis, String from, String text) {
+			this.millis = millis;
+			this.from = from;
+			this.text = text;
+		}
+
+		/**
+		 * Gets the send time.
+		 *
+		 * @return wall clock milliseconds
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Gets the sender.
+		 *
+		 * @return sender username
+		 */
+		public String getFrom() {
+			return from;
+		}
+
+		/**
+		 * Gets the text.
+		 *
+		 * @return text
+		 */
+		public String getText() {
+			return text;
+		}
+	}
+}
@@ -12,5 +12,15 @@ public enum MessageType {
 	/** Shutdown server. */
 	SHUTDOWN,
 	/** Logout client. */
-	LOGOUT;
+	LOGOUT,
+	/** File offer, opens a file transfer. */
+	FILE,
+	/** File chunk, an empty chunk closes the transfer. */
+	FILE_CHUNK,
+	/** Online users snapshot or delta, sent by a client to request a snapshot. */
+	PRESENCE,
+	/** Cumulative acknowledgement, the message holds the last sequence received. */
+	ACK,
+	/** Direct messages received while offline, as {@link MailboxFrames} in the data. */
+	MAILBOX;
 }
@@ -0,0 +1,126 @@
+package es.ubu.lsi.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted direct buffer taken from a {@link BufferPool}.
+ *
+ * A buffer is acquired with one reference. Every holder that keeps it beyond
+ * the call that handed it over, such as the send queue or the retransmit
+ * window of each recipient of a broadcast, takes its own reference with
+ * {@link #retain()} and gives it back with {@link #release()}. When the last
+ * reference is released the buffer goes back to the pool.
+ *
+ * A buffer shared by several threads must only be read with absolute gets, so
+ * that its position and limit never change after encoding.
+ *
+ * @author Jose Maria Santos
+ */
+public final class PooledBuffer {
+
+	/** Pool the buffer belongs to. */
+	private final BufferPool pool;
+
+	/** Size class, -1 if the buffer is too large to be pooled. */
+	private final int sizeClass;
+
+	/** Direct buffer, owned for the whole life of this wrapper. */
+	private final ByteBuffer buffer;
+
+	/** References. */
+	private final AtomicInteger refs = new AtomicInteger();
+
+	/** Allocation record, only with leak detection enabled. */
+	BufferPool.Leak leak;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool      pool of the buffer
+	 * @param sizeClass size class, -1 if not pooled
+	 * @param capacity  capacity in bytes
+	 */
+	PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Gets the underlying buffer.
+	 *
+	 * @return direct buffer
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Adds a reference.
+	 *
+	 * @return this same buffer
+	 * @throws IllegalStateException if the buffer was already released
+	 */
+	public PooledBuffer retain() {
+		int current;
+		do {
+			current = refs.get();
+			if (current <= 0) {
+				throw new IllegalStateException("Buffer already released");
+			}
+		} while (!refs.compareAndSet(current, current + 1));
+		return this;
+	}
+
+	/**
+	 * Releases a reference, the last one returns the buffer to the pool.
+	 *
+	 * @return true if the buffer went back to the pool
+	 * @throws IllegalStateException if the buffer was already released
+	 */
+	public boolean release() {
+		int left = refs.decrementAndGet();
+		if (left < 0) {
+			refs.incrementAndGet();
+			throw new IllegalStateException("Buffer released too many times");
+		}
+		if (left == 0) {
+			pool.recycle(this);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the number of references.
+	 *
+	 * @return references, 0 if the buffer is in the pool
+	 */
+	public int refCount() {
+		return refs.get();
+	}
+
+	/**
+	 * Gets the size class.
+	 *
+	 * @return size class, -1 if not pooled
+	 */
+	int sizeClass() {
+		return sizeClass;
+	}
+
+	/**
+	 * Prepares the buffer for a new owner: one reference, position 0 and limit
+	 * the requested size.
+	 *
+	 * @param size requested size
+	 * @return this same buffer
+	 */
+	PooledBuffer reset(int size) {
+		buffer.clear();
+		buffer.limit(size);
+		refs.set(1);
+		return this;
+	}
+}
@@ -0,0 +1,80 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over TCP sockets.
+ *
+ * @author Jose Maria Santos
+ */
+public class TcpTransport implements Transport {
+
+	@Override
+	public ConnectionAcceptor listen(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port);
+		return new ConnectionAcceptor() {
+
+			@Override
+			public Connection accept() throws IOException {
+				return new SocketConnection(server.accept());
+			}
+
+			@Override
+			public String getLocalAddress() {
+				return server.getInetAddress() + ":" + server.getLocalPort();
+			}
+
+			@Override
+			public void close() throws IOException {
+				server.close();
+			}
+		};
+	}
+
+	@Override
+	public Connection connect(String host, int port) throws IOException {
+		return new SocketConnection(new Socket(host, port));
+	}
+
+	/**
+	 * Connection over a socket.
+	 */
+	private static class SocketConnection implements Connection {
+
+		/** Socket. */
+		private final Socket socket;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param socket connected socket
+		 */
+		SocketConnection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return socket.getInetAddress() + ":" + socket.getPort();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
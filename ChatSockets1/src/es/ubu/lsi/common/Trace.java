@@ -0,0 +1,51 @@
+package es.ubu.lsi.common;
+
+/**
+ * Latency trace carried by a {@link ChatMessage}.
+ *
+ * Tracing is enabled with the system property {@code chat.trace=true}. When it
+ * is disabled messages carry no trace and the only cost is a null check.
+ *
+ * @author Jose Maria Santos
+ */
+public final class Trace {
+
+	/** Whether tracing is enabled in this JVM. */
+	public static final boolean ENABLED = Boolean.getBoolean("chat.trace");
+
+	/** Client send time, wall clock milliseconds. */
+	public static final int SEND_MILLIS = 0;
+
+	/** Client send time, nanoTime of the sender JVM. */
+	public static final int SEND_NANOS = 1;
+
+	/** Server receive time, after decoding, nanoTime of the server JVM. */
+	public static final int SERVER_RECEIVE = 2;
+
+	/** Server fan-out start, after command dispatch, nanoTime of the server JVM. */
+	public static final int FANOUT_START = 3;
+
+	/** Server fan-out end, all recipients enqueued, nanoTime of the server JVM. */
+	public static final int FANOUT_END = 4;
+
+	/** Number of trace fields, a trace of any other length is not valid. */
+	public static final int LENGTH = 5;
+
+	/**
+	 * Private constructor, utility class.
+	 */
+	private Trace() {
+	}
+
+	/**
+	 * Creates a trace stamped with the current send time.
+	 *
+	 * @return new trace
+	 */
+	public static long[] start() {
+		long[] trace = new long[LENGTH];
+		trace[SEND_MILLIS] = System.currentTimeMillis();
+		trace[SEND_NANOS] = System.nanoTime();
+		return trace;
+	}
+}
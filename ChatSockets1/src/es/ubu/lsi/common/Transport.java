@@ -0,0 +1,35 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+
+/**
+ * Way of carrying the bytes between clients and server.
+ *
+ * {@link TcpTransport} uses sockets and is the default. {@link LoopbackTransport}
+ * uses in-memory pipes, so a server and thousands of clients can run in a
+ * single JVM without going through the network stack, for tests and
+ * benchmarks.
+ *
+ * @author Jose Maria Santos
+ */
+public interface Transport {
+
+	/**
+	 * Starts accepting connections on a port.
+	 *
+	 * @param port port
+	 * @return acceptor
+	 * @throws IOException if the port is in use
+	 */
+	ConnectionAcceptor listen(int port) throws IOException;
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param host server address
+	 * @param port server port
+	 * @return connection
+	 * @throws IOException if nobody is listening on the port
+	 */
+	Connection connect(String host, int port) throws IOException;
+}
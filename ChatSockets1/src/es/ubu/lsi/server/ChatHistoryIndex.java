@@ -0,0 +1,246 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indice invertido del historial reciente del chat.
+ *
+ * El historial se divide en segmentos de {@link #SEGMENT_SIZE} mensajes. Cada
+ * segmento guarda sus mensajes y, para cada termino, la lista de posiciones de
+ * los mensajes que lo contienen, codificada como diferencias en varint dentro
+ * de un array de bytes. Los mensajes nuevos se anaden al segmento activo; al
+ * llenarse se abre otro y, si hay mas de {@link #MAX_SEGMENTS}, se descarta
+ * entero el mas antiguo. Asi el indice cubre una ventana acotada y se mantiene
+ * de forma incremental, sin reconstruirlo nunca desde cero.
+ *
+ * @author Jose Maria Santos
+ */
+class ChatHistoryIndex {
+
+	/** Mensajes por segmento. */
+	static final int SEGMENT_SIZE = 4096;
+
+	/** Segmentos conservados, la ventana es de SEGMENT_SIZE * MAX_SEGMENTS mensajes. */
+	static final int MAX_SEGMENTS = 64;
+
+	/** Numero maximo de resultados de una busqueda. */
+	static final int MAX_RESULTS = 10;
+
+	/** Segmentos, el mas reciente al final. */
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+	/**
+	 * Anade un mensaje al indice.
+	 *
+	 * @param line  linea tal como se ha difundido, es lo que se devuelve al buscar
+	 * @param terms texto del que se extraen los terminos
+	 */
+	synchronized void add(String line, String terms) {
+		Segment active = segments.peekLast();
+		if (active == null || active.isFull()) {
+			active = new Segment();
+			segments.addLast(active);
+			if (segments.size() > MAX_SEGMENTS) {
+				segments.removeFirst();
+			}
+		}
+		active.add(line, tokenize(terms));
+	}
+
+	/**
+	 * Busca los mensajes con mas terminos de la consulta; a igualdad, los mas
+	 * recientes primero.
+	 *
+	 * @param query consulta, terminos separados por espacios
+	 * @return lineas encontradas, como mucho {@link #MAX_RESULTS}
+	 */
+	synchronized List<String> search(String query) {
+		Set<String> terms = tokenize(query);
+		List<String> results = new ArrayList<String>();
+		if (terms.isEmpty()) {
+			return results;
+		}
+		// Para cada numero de terminos, de mas a menos, los segmentos de nuevo a viejo
+		int[][] scores = new int[segments.size()][];
+		Segment[] ordered = segments.toArray(new Segment[0]);
+		for (int s = 0; s < ordered.length; s++) {
+			scores[s] = ordered[s].score(terms);
+		}
+		for (int wanted = terms.size(); wanted > 0 && results.size() < MAX_RESULTS; wanted--) {
+			for (int s = ordered.length - 1; s >= 0 && results.size() < MAX_RESULTS; s--) {
+				if (scores[s] == null) {
+					continue;
+				}
+				for (int i = ordered[s].size - 1; i >= 0 && results.size() < MAX_RESULTS; i--) {
+					if (scores[s][i] == wanted) {
+						results.add(ordered[s].lines[i]);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Devuelve el numero de mensajes indexados.
+	 *
+	 * @return mensajes en la ventana
+	 */
+	synchronized int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Extrae los terminos de un texto: secuencias de letras y digitos, en
+	 * minusculas y sin repetir.
+	 *
+	 * @param text texto
+	 * @return terminos
+	 */
+	static Set<String> tokenize(String text) {
+		Set<String> terms = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				terms.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Segmento del indice: mensajes y listas de posiciones de sus terminos.
+	 */
+	private static final class Segment {
+
+		/** Mensajes del segmento. */
+		final String[] lines = new String[SEGMENT_SIZE];
+
+		/** Numero de mensajes. */
+		int size;
+
+		/** Listas de posiciones por termino. */
+		final Map<String, PostingList> postings = new HashMap<String, PostingList>();
+
+		/**
+		 * Indica si el segmento esta lleno.
+		 *
+		 * @return true si no admite mas mensajes
+		 */
+		boolean isFull() {
+			return size == SEGMENT_SIZE;
+		}
+
+		/**
+		 * Anade un mensaje.
+		 *
+		 * @param line  linea
+		 * @param terms terminos del mensaje
+		 */
+		void add(String line, Set<String> terms) {
+			int offset = size++;
+			lines[offset] = line;
+			for (String term : terms) {
+				PostingList list = postings.get(term);
+				if (list == null) {
+					list = new PostingList();
+					postings.put(term, list);
+				}
+				list.add(offset);
+			}
+		}
+
+		/**
+		 * Cuenta, para cada mensaje, cuantos terminos de la consulta contiene.
+		 *
+		 * @param terms terminos de la consulta
+		 * @return cuenta por posicion, o null si no contiene ningun termino
+		 */
+		int[] score(Set<String> terms) {
+			int[] scores = null;
+			for (Iterator<String> it = terms.iterator(); it.hasNext();) {
+				PostingList list = postings.get(it.next());
+				if (list != null) {
+					if (scores == null) {
+						scores = new int[size];
+					}
+					list.addTo(scores);
+				}
+			}
+			return scores;
+		}
+	}
+
+	/**
+	 * Lista de posiciones ordenada y comprimida: cada posicion se guarda como la
+	 * diferencia con la anterior en varint, de 7 en 7 bits.
+	 */
+	private static final class PostingList {
+
+		/** Bytes codificados. */
+		private byte[] data = new byte[4];
+
+		/** Bytes usados. */
+		private int length;
+
+		/** Ultima posicion anadida. */
+		private int last = -1;
+
+		/**
+		 * Anade una posicion mayor que la anterior.
+		 *
+		 * @param offset posicion
+		 */
+		void add(int offset) {
+			int delta = offset - last;
+			last = offset;
+			if (length + 5 > data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			while ((delta & ~0x7F) != 0) {
+				data[length++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			data[length++] = (byte) delta;
+		}
+
+		/**
+		 * Suma uno a la cuenta de cada posicion de la lista.
+		 *
+		 * @param scores cuentas por posicion
+		 */
+		void addTo(int[] scores) {
+			int offset = -1;
+			int pos = 0;
+			while (pos < length) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[pos++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				offset += delta;
+				scores[offset]++;
+			}
+		}
+	}
+}
@@ -1,19 +1,38 @@
 package es.ubu.lsi.server;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import es.ubu.lsi.common.BufferPool;
+import es.ubu.lsi.common.CaptureFile;
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Connection;
+import es.ubu.lsi.common.ConnectionAcceptor;
+import es.ubu.lsi.common.FrameCodec;
+import es.ubu.lsi.common.FrameInput;
+import es.ubu.lsi.common.FrameOutput;
+import es.ubu.lsi.common.MailboxFrames;
 import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.PooledBuffer;
+import es.ubu.lsi.common.TcpTransport;
+import es.ubu.lsi.common.Trace;
+import es.ubu.lsi.common.Transport;
 
 /**
  * Clase ChatServerlmpl. Implementacin del servidor del chat.
@@ -29,6 +48,34 @@ public class ChatServerImpl implements ChatServer {
 	/** ID del cliente, tambin sirve como contador de clientes conectados. */
 	private static int clientId = 0;
 
+	/** Contador de IDs de transferencias de ficheros. */
+	private static final AtomicInteger transferIds = new AtomicInteger();
+
+	/** Numero maximo de ventanas de retransmision guardadas de sesiones caidas. */
+	private static final int MAX_DETACHED_WINDOWS = 1000;
+
+	/** Tiempo que se guarda la ventana de una sesion caida, en milisegundos. */
+	private static final long DETACHED_WINDOW_MILLIS = 5 * 60 * 1000;
+
+	/** Intervalo de la purga de ventanas desconectadas caducadas, en segundos. */
+	private static final long SWEEP_SECONDS = 60;
+
+	/**
+	 * Trama mas larga aceptada de un cliente, deja margen para el prefijo que se
+	 * anade al difundir.
+	 */
+	private static final int MAX_CLIENT_FRAME = FrameCodec.MAX_FRAME_LENGTH / 2;
+
+	/**
+	 * Caracteres de la consulta y de cada linea en la respuesta a una busqueda.
+	 * A 3 bytes por caracter como mucho, la respuesta completa ocupa menos de
+	 * media trama.
+	 */
+	static final int MAX_SEARCH_LINE = MAX_CLIENT_FRAME / 3 / (ChatHistoryIndex.MAX_RESULTS + 1);
+
+	/** Comandos reconocidos al principio de un mensaje. */
+	private static final String[] COMMANDS = { "drop", "ban", "unban", "search", "msg", "get" };
+
 	/** Formato de fecha. */
 	private static SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
 
@@ -39,16 +86,86 @@ public class ChatServerImpl implements ChatServer {
 	private boolean alive;
 
 	/** Mapa con los usuarios de clientes. */
-	Map<String, ServerThreadForClient> clientsMap = new HashMap<String, ServerThreadForClient>();
+	Map<String, ServerThreadForClient> clientsMap = new ConcurrentHashMap<String, ServerThreadForClient>();
 
 	/** Mapa con los ids de clientes. */
-	Map<Integer, String> clientsIdMap = new HashMap<Integer, String>();
+	Map<Integer, String> clientsIdMap = new ConcurrentHashMap<Integer, String>();
 
 	/** Mapa con los usuarios baneados. */
-	Map<String, Boolean> bannedUsers = new HashMap<String, Boolean>();
+	Map<String, Boolean> bannedUsers = new ConcurrentHashMap<String, Boolean>();
+
+	/** Transporte de las conexiones, TCP salvo en pruebas. */
+	private final Transport transport;
 
-	/** Servidor socket. */
-	ServerSocket server;
+	/** Extremo del servidor, acepta las conexiones. */
+	ConnectionAcceptor server;
+
+	/**
+	 * Ventanas de retransmision de sesiones que han perdido la conexion, por
+	 * username. Si el usuario vuelve a entrar recibe los mensajes sin confirmar.
+	 */
+	Map<String, RetransmitWindow> detachedWindows = new LinkedHashMap<String, RetransmitWindow>() {
+
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RetransmitWindow> eldest) {
+			if (size() > MAX_DETACHED_WINDOWS) {
+				eldest.getValue().discard();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Hilo que descarta las ventanas desconectadas caducadas, para que sus tramas
+	 * vuelvan al pool aunque el usuario no vuelva a entrar, y los ficheros
+	 * ofrecidos caducados.
+	 */
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ExpirySweeper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Ficheros subidos, a la espera de que los pidan. */
+	SharedFiles sharedFiles = new SharedFiles();
+
+	/** Filtro de moderacion, lee el fichero indicado en chat.moderation.file. */
+	ModerationFilter moderation = new ModerationFilter(
+			new File(System.getProperty("chat.moderation.file", "moderation.txt")));
+
+	/**
+	 * Captura de todas las tramas recibidas, solo si se indica el fichero en
+	 * chat.capture.file. Se reproduce con {@link es.ubu.lsi.client.TrafficReplay}.
+	 */
+	volatile CaptureFile.Writer capture = openCapture(System.getProperty("chat.capture.file"));
+
+	/** Contador de las sesiones de la captura, una por conexion. */
+	private final AtomicInteger captureSessions = new AtomicInteger();
+
+	/** Histogramas de latencia por etapa de los mensajes con traza. */
+	TraceStats traceStats = new TraceStats();
+
+	/**
+	 * Pool de las tramas de salida. Cada mensaje se codifica una sola vez y su
+	 * trama se comparte entre las colas y ventanas de todos los destinatarios.
+	 */
+	BufferPool buffers = new BufferPool();
+
+	/** Indice invertido de los ultimos mensajes difundidos, para el comando search. */
+	ChatHistoryIndex history = new ChatHistoryIndex();
+
+	/** Mensajes directos a usuarios desconectados, se entregan en su siguiente login. */
+	MailboxStore mailboxes = new MailboxStore();
+
+	/** Reparto de los mensajes, en paralelo en salas muy grandes. */
+	ParallelFanOut<ServerThreadForClient> fanOut = new ParallelFanOut<ServerThreadForClient>();
+
+	/** Usuarios conectados, difunde las altas y bajas agrupadas. */
+	PresenceService presence = new PresenceService(this::sendToAll);
 
 	/**
 	 * Constructor con el puerto 1500 por defecto.
@@ -64,8 +181,21 @@ public class ChatServerImpl implements ChatServer {
 	 * @param port the port
 	 */
 	public ChatServerImpl(int port) {
+		this(port, new TcpTransport());
+	}
+
+	/**
+	 * Constructor con el puerto y el transporte. Con un
+	 * {@link es.ubu.lsi.common.LoopbackTransport} el servidor y los clientes
+	 * pueden ejecutarse en la misma JVM sin sockets.
+	 *
+	 * @param port      puerto
+	 * @param transport transporte de las conexiones
+	 */
+	public ChatServerImpl(int port, Transport transport) {
 		this.alive = true;
 		this.port = port;
+		this.transport = transport;
 	}
 
 	/**
@@ -99,18 +229,22 @@ public class ChatServerImpl implements ChatServer {
 	 */
 	public void startup() {
 		try {
-			this.server = new ServerSocket(this.port);
+			this.server = transport.listen(this.port);
 			System.out.println("[" + getDateString() + "] Server started in port: " + this.port);
 		} catch (IOException e) {
 			System.err.println("ERROR: Unable to connect to server");
-			System.exit(1);
+			return;
 		}
+		sweeper.scheduleWithFixedDelay(() -> discardExpiredWindows(DETACHED_WINDOW_MILLIS), SWEEP_SECONDS,
+				SWEEP_SECONDS, TimeUnit.SECONDS);
+		sweeper.scheduleWithFixedDelay(() -> sharedFiles.discardExpired(System.currentTimeMillis()), SWEEP_SECONDS,
+				SWEEP_SECONDS, TimeUnit.SECONDS);
 		while (alive) {
-			System.out.println("Listening for connections at " + server.getInetAddress() + ":" + server.getLocalPort());
+			System.out.println("Listening for connections at " + server.getLocalAddress());
 			// mostrarMapas();
 			try {
 				// Al aceptar conexiones inicia el hilo de servidor para ese cliente
-				Socket client = server.accept();
+				Connection client = server.accept();
 				ServerThreadForClient clientThread = new ServerThreadForClient(client);
 				clientThread.start();
 			} catch (IOException e) {
@@ -119,19 +253,43 @@ public class ChatServerImpl implements ChatServer {
 		}
 	}
 
+	/**
+	 * Descarta las ventanas desconectadas que llevan mas del tiempo indicado sin
+	 * que el usuario vuelva a entrar.
+	 *
+	 * @param millis tiempo maximo de desconexion
+	 */
+	void discardExpiredWindows(long millis) {
+		synchronized (detachedWindows) {
+			for (Iterator<RetransmitWindow> it = detachedWindows.values().iterator(); it.hasNext();) {
+				RetransmitWindow window = it.next();
+				if (window.expired(millis)) {
+					window.discard();
+					it.remove();
+				}
+			}
+		}
+	}
+
 	/**
 	 * Mtodo que finaliza y cierra el servidor, incluidas todas las conexiones con
 	 * los clientes.
 	 */
 	public void shutdown() {
 		alive = false;
+		sweeper.shutdownNow();
+		presence.shutdown();
+		moderation.shutdown();
+		fanOut.shutdown();
+		sharedFiles.clear();
+		closeCapture();
 		try {
 			// Cierra todas las conexiones de clientes
 			for (ServerThreadForClient client : clientsMap.values()) {
 				client.shutdownClient();
 			}
-			// Cierra el socket del servidor
-			if (server != null && !server.isClosed()) {
+			// Deja de aceptar conexiones
+			if (server != null) {
 				server.close();
 			}
 		} catch (IOException e) {
@@ -147,21 +305,174 @@ public class ChatServerImpl implements ChatServer {
 	 */
 	public void broadcast(ChatMessage message) {
 		String senderUsername = getUsernameById(message.getId());
-		if (bannedUsers.getOrDefault(senderUsername, false)) {
+		if (senderUsername != null && bannedUsers.getOrDefault(senderUsername, false)) {
 			// Si el usuario est baneado, no hacer broadcast de su mensaje.
 			return;
 		}
 
 		String time = "[" + getDateString() + "]";
+		ChatMessage newMsg = new ChatMessage(message.getId(), message.getType(),
+				time + " " + senderUsername + ": " + message.getMessage());
+		history.add(newMsg.getMessage(), senderUsername + " " + message.getMessage());
+		// Solo se usa una traza valida, tambien se difunden mensajes del propio servidor
+		long[] trace = message.getTrace();
+		if (!Trace.ENABLED || trace == null || trace.length != Trace.LENGTH) {
+			trace = null;
+		} else {
+			trace[Trace.FANOUT_START] = System.nanoTime();
+			traceStats.dispatch.record(trace[Trace.FANOUT_START] - trace[Trace.SERVER_RECEIVE]);
+			newMsg.setTrace(trace);
+		}
+		// Una unica trama compartida por todos los clientes y sus ventanas de retransmision
+		PooledBuffer frame = encode(newMsg);
+		try {
+			fanOut.forEach(clientsMap.values(), handler -> handler.send(frame));
+		} finally {
+			frame.release();
+		}
+		if (trace != null) {
+			trace[Trace.FANOUT_END] = System.nanoTime();
+			traceStats.fanout.record(trace[Trace.FANOUT_END] - trace[Trace.FANOUT_START]);
+		}
+	}
+
+	/**
+	 * Envia un mismo mensaje, sin modificar, a todos los clientes conectados. Se
+	 * utiliza para los mensajes de presencia.
+	 *
+	 * @param message mensaje a enviar
+	 */
+	void sendToAll(ChatMessage message) {
+		PooledBuffer frame;
+		try {
+			frame = encode(message);
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: " + message.getType() + " not sent to all clients: " + e.getMessage());
+			return;
+		}
+		try {
+			fanOut.forEach(clientsMap.values(), handler -> handler.send(frame));
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Codifica un mensaje en una trama del pool, con una referencia que debe
+	 * liberar quien la pide. Las tramas mayores que
+	 * {@link FrameCodec#MAX_FRAME_LENGTH} se rechazan: el cliente cerraria la
+	 * conexion al recibirlas y la ventana las reenviaria en cada reconexion.
+	 *
+	 * @param message mensaje
+	 * @return trama lista para escribir
+	 * @throws IllegalArgumentException si el mensaje no cabe en una trama
+	 */
+	PooledBuffer encode(ChatMessage message) {
+		int length = FrameCodec.encodedLength(message);
+		if (length > FrameCodec.MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Message too large: " + length + " bytes");
+		}
+		PooledBuffer frame = buffers.acquire(length);
+		FrameCodec.encode(message, frame.buffer());
+		frame.buffer().flip();
+		return frame;
+	}
+
+	/**
+	 * Muestra por pantalla el retraso de entrega de cada cliente: mensajes sin
+	 * confirmar, tiempo hasta el ultimo ACK y maximo, y mensajes que ya no se
+	 * pueden reenviar por ventana llena. Se muestra con el comando lag de la
+	 * consola.
+	 */
+	public void showDeliveryLag() {
+		System.out.println("Delivery lag (Username -> unacked, last ack ms, max ack ms, overflows):");
 		for (ServerThreadForClient handler : clientsMap.values()) {
-			// Creamos un nuevo mensaje para cada cliente y lo enviamos.
-			ChatMessage newMsg = new ChatMessage(message.getId(), message.getType(),
-					time + " " + getUsernameById(message.getId()) + ": " + message.getMessage());
+			RetransmitWindow window = handler.writer.window();
+			System.out.println("Username: " + handler.getUsername() + ", " + window.lag() + ", "
+					+ window.lastAckMillis() + ", " + window.maxAckMillis() + ", " + window.overflows());
+		}
+	}
+
+	/**
+	 * Muestra por pantalla la memoria de cada sesion: bytes escritos, tramas en
+	 * la cola de escritura y tramas retenidas por la ventana de retransmision.
+	 */
+	public void showSessionMemory() {
+		System.out.println("Session memory (Username -> bytes written, queued, pinned by window):");
+		for (ServerThreadForClient handler : clientsMap.values()) {
+			System.out.println("Username: " + handler.getUsername() + ", " + handler.output.getBytesWritten() + ", "
+					+ handler.writer.queued() + ", " + handler.writer.window().lag());
+		}
+	}
+
+	/**
+	 * Muestra por pantalla el uso del pool de tramas: buffers en uso, bytes
+	 * libres, buffers creados, peticiones servidas desde el pool, peticiones
+	 * demasiado grandes y fugas detectadas.
+	 *
+	 * @see BufferPool
+	 */
+	public void showBufferPool() {
+		buffers.reportLeaks();
+		long acquires = buffers.getAcquires();
+		long hits = acquires - buffers.getAllocations();
+		System.out.println("Buffer pool: " + buffers.getInUse() + " in use, " + buffers.getFreeBytes()
+				+ " bytes free, " + buffers.getAllocations() + " buffers allocated (" + buffers.getAllocatedBytes()
+				+ " bytes), " + hits + "/" + acquires + " acquires served from the pool, " + buffers.getOversize()
+				+ " oversize, " + buffers.getLeaks() + " leaks"
+				+ (BufferPool.LEAK_DETECTION ? "" : " (leak detection disabled)"));
+	}
+
+	/**
+	 * Muestra por pantalla los histogramas de latencia por etapa. Solo hay
+	 * muestras si los clientes envian los mensajes con traza.
+	 *
+	 * @see Trace
+	 */
+	public void showLatencies() {
+		traceStats.print();
+	}
+
+	/**
+	 * Abre el fichero de captura y lo cierra al terminar la JVM, para no perder
+	 * las tramas del buffer.
+	 *
+	 * @param path ruta del fichero, null si no se captura
+	 * @return captura, o null si no se captura o no se puede crear el fichero
+	 */
+	private static CaptureFile.Writer openCapture(String path) {
+		if (path == null) {
+			return null;
+		}
+		try {
+			CaptureFile.Writer writer = new CaptureFile.Writer(new File(path));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// la JVM termina, no hay nada mas que hacer
+				}
+			}));
+			System.out.println("Capturing inbound traffic to " + path);
+			return writer;
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not create capture file " + path);
+			return null;
+		}
+	}
+
+	/**
+	 * Cierra la captura, si la hay.
+	 */
+	private void closeCapture() {
+		CaptureFile.Writer writer = capture;
+		capture = null;
+		if (writer != null) {
 			try {
-				handler.output.writeObject(newMsg);
+				writer.close();
+				System.out.println("Capture closed: " + writer.getRecords() + " frames.");
 			} catch (IOException e) {
-				System.err.println("ERROR: Could not send message to client " + handler.getUsername());
-				remove(handler.id);
+				System.err.println("ERROR: Could not close capture file");
 			}
 		}
 	}
@@ -188,11 +499,13 @@ public class ChatServerImpl implements ChatServer {
 		// Si se encontr un nombre de usuario, proceder a removerlo
 		String usernameToDelete = getUsernameById(id);
 		if (usernameToDelete != null) {
-			// Recupera y elimina el cliente del mapa
-			ServerThreadForClient client = clientsMap.remove(usernameToDelete);
-			if (client != null) {
+			clientsIdMap.remove(id);
+			// Recupera y elimina el cliente del mapa, solo si sigue siendo esta sesion:
+			// el usuario puede haber vuelto a entrar ya con otra conexion
+			ServerThreadForClient client = clientsMap.get(usernameToDelete);
+			if (client != null && client.id == id && clientsMap.remove(usernameToDelete, client)) {
 				client.shutdownClient(); // cerramos la conexin correctamente
-				clientsIdMap.remove(id);
+				presence.left(usernameToDelete);
 				// mostramos mensajes informativos
 				System.out.println("[" + getDateString() + "] Client " + usernameToDelete + " removed.");
 				System.out.println("Connected clients: " + clientsMap.size());
@@ -218,8 +531,47 @@ public class ChatServerImpl implements ChatServer {
 	 * @param args Argumentos del main
 	 */
 	public static void main(String[] args) {
+		ChatServerImpl server = new ChatServerImpl();
+		Thread console = new Thread(() -> server.console(new BufferedReader(new InputStreamReader(System.in))),
+				"console");
+		console.setDaemon(true);
+		console.start();
+		server.startup();
+	}
 
-		new ChatServerImpl().startup();
+	/**
+	 * Atiende los comandos de la consola del servidor, que muestran sus
+	 * estadisticas: lag, memory, pool y latency.
+	 *
+	 * @param in consola
+	 */
+	void console(BufferedReader in) {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				switch (line.trim().toLowerCase()) {
+				case "lag":
+					showDeliveryLag();
+					break;
+				case "memory":
+					showSessionMemory();
+					break;
+				case "pool":
+					showBufferPool();
+					break;
+				case "latency":
+					showLatencies();
+					break;
+				case "":
+					break;
+				default:
+					System.out.println("Console commands: lag, memory, pool, latency");
+					break;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not read the console");
+		}
 	}
 
 	/**
@@ -237,27 +589,49 @@ public class ChatServerImpl implements ChatServer {
 		/** Username del cliente. */
 		private String username;
 
-		/** Socket del cliente. */
-		private Socket socket;
+		/** Conexion con el cliente. */
+		private Connection connection;
 
 		/** Input. */
-		private ObjectInputStream input;
+		private FrameInput input;
+
+		/** Entrada con marca del primer byte, solo con la traza activada. */
+		private TimedInputStream timedInput;
 
 		/** Output. */
-		private ObjectOutputStream output;
+		private FrameOutput output;
+
+		/** Hilo escritor del canal de salida. */
+		ClientWriter writer;
+
+		/** Sesion de la conexion en la captura. */
+		private final int captureSession = captureSessions.incrementAndGet();
+
+		/** Fichero que esta subiendo el cliente, null si no hay ninguno. */
+		private FileSpool upload;
+
+		/** Indica si la ventana de retransmision se ha guardado para retomar la sesion. */
+		private boolean windowDetached;
 
 		/**
 		 * Constructor.
 		 *
-		 * @param socket Socket
+		 * @param connection conexion con el cliente
 		 */
-		public ServerThreadForClient(Socket socket) {
-			// inicializa el socket, la bandera y socket entrada y salida
-			this.socket = socket;
+		public ServerThreadForClient(Connection connection) {
+			// inicializa la conexion, la bandera y los canales de entrada y salida
+			this.connection = connection;
 			this.running = true;
 			try {
-				output = new ObjectOutputStream(socket.getOutputStream());
-				input = new ObjectInputStream(socket.getInputStream());
+				output = new FrameOutput(connection.getOutputStream());
+				InputStream in = connection.getInputStream();
+				if (Trace.ENABLED) {
+					timedInput = new TimedInputStream(in);
+					in = timedInput;
+				}
+				input = new FrameInput(in, MAX_CLIENT_FRAME);
+				writer = new ClientWriter("ClientWriter-" + connection.getRemoteAddress(), output, connection, traceStats,
+						this::dropOnFailure);
 			} catch (IOException e) {
 				System.err.println("ERROR: Could not create connection handler thread!");
 			}
@@ -272,10 +646,17 @@ public class ChatServerImpl implements ChatServer {
 		 */
 		@Override
 		public void run() {
+			if (writer == null) {
+				shutdownClient();
+				return;
+			}
+			writer.start();
 			try {
 				loginUser();
 				while (running) {
-					ChatMessage message = (ChatMessage) input.readObject();
+					ChatMessage message = input.readMessage();
+					stampReceive(message);
+					record(message);
 					switch (message.getType()) {
 					case MESSAGE:
 						showTypeMessage(message);
@@ -283,7 +664,20 @@ public class ChatServerImpl implements ChatServer {
 						// + message.getId()
 						// + ": " + message.getMessage());
 						break;
+					case FILE:
+						startUpload(message);
+						break;
+					case FILE_CHUNK:
+						appendUpload(message);
+						break;
+					case ACK:
+						acknowledge(message);
+						break;
+					case PRESENCE:
+						send(presence.snapshot());
+						break;
 					case LOGOUT:
+						forgetDetachedWindow();
 						remove(id);
 						shutdownClient();
 						System.out.println("[" + getDateString() + "] Disconnected user: " + getUsername());
@@ -306,10 +700,79 @@ public class ChatServerImpl implements ChatServer {
 					}
 				}
 
-			} catch (ClassNotFoundException | IOException e) {
+			} catch (IOException e) {
 				System.err.println("ERROR: Connection lost with client " + getUsername() + "\n");
+				detachWindow();
 				remove(id); // Si el usuario ha sido expulsado por otro, se eliminar antes de este remove
 				shutdownClient(); // finaliza el cliente
+			} catch (RuntimeException e) {
+				// Un mensaje que no se ha podido procesar no deja al cliente registrado sin hilo
+				System.err.println("ERROR: Unexpected error with client " + getUsername() + ", disconnecting: " + e);
+				detachWindow();
+				remove(id);
+				shutdownClient();
+			} finally {
+				abortUpload();
+				releaseWindow();
+				recordClose();
+			}
+		}
+
+		/**
+		 * Anade a la captura una trama recibida. Si falla la escritura se deja de
+		 * capturar.
+		 *
+		 * @param message mensaje recibido
+		 */
+		private void record(ChatMessage message) {
+			CaptureFile.Writer writer = capture;
+			if (writer != null) {
+				try {
+					writer.write(captureSession, message);
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not write capture file, capture stopped.");
+					closeCapture();
+				}
+			}
+		}
+
+		/**
+		 * Anade a la captura el cierre de la conexion y vacia el buffer.
+		 */
+		private void recordClose() {
+			CaptureFile.Writer writer = capture;
+			if (writer != null) {
+				try {
+					writer.writeClose(captureSession);
+					writer.flush();
+				} catch (IOException e) {
+					System.err.println("ERROR: Could not write capture file, capture stopped.");
+					closeCapture();
+				}
+			}
+		}
+
+		/**
+		 * Anota el instante de recepcion en la traza del mensaje y registra la
+		 * etapa de decodificacion. La traza la pone el cliente: si la traza esta
+		 * desactivada o no tiene {@link Trace#LENGTH} campos se descarta, y el
+		 * servidor nunca accede a campos que no existen.
+		 *
+		 * @param message mensaje recibido
+		 */
+		private void stampReceive(ChatMessage message) {
+			long firstByte = timedInput != null ? timedInput.takeFirstByteNanos() : 0;
+			long[] trace = message.getTrace();
+			if (trace == null) {
+				return;
+			}
+			if (!Trace.ENABLED || trace.length != Trace.LENGTH) {
+				message.setTrace(null);
+				return;
+			}
+			trace[Trace.SERVER_RECEIVE] = System.nanoTime();
+			if (firstByte != 0) {
+				traceStats.decode.record(trace[Trace.SERVER_RECEIVE] - firstByte);
 			}
 		}
 
@@ -336,16 +799,145 @@ public class ChatServerImpl implements ChatServer {
 					dropUser(username); // drop username by other client
 					break;
 				case "ban":
-					banUser(username, true); // ban username by other client
+					banUser(username, true, getUsername()); // ban username by other client
 					break;
 				case "unban":
-					banUser(username, false); // unban username by other client
+					banUser(username, false, getUsername()); // unban username by other client
+					break;
+				case "search":
+					searchHistory(username); // aqui el argumento es la consulta
+					break;
+				case "msg":
+					sendDirect(username); // aqui el argumento es el username y el texto
+					break;
+				case "get":
+					sendSharedFile(username); // aqui el argumento es el numero del fichero
 					break;
 				default:
 					break;
 				}
 			} else {
-				broadcast(message); // emitimos el mensaje
+				moderateAndBroadcast(message); // emitimos el mensaje
+			}
+		}
+
+		/**
+		 * Pasa el mensaje por el filtro de moderacion y lo emite enmascarado o, si
+		 * se bloquea, no lo emite. Al llegar al maximo de faltas se banea al autor.
+		 *
+		 * @param message mensaje a revisar y enviar
+		 */
+		private void moderateAndBroadcast(ChatMessage message) {
+			String text = moderation.moderate(getUsername(), message.getMessage());
+			if (text == null) {
+				System.out.println("[" + getDateString() + "] Message from " + getUsername() + " blocked by moderation.");
+			} else {
+				message.setMessage(text);
+				broadcast(message);
+			}
+			if (moderation.shouldBan(getUsername())) {
+				banUser(getUsername(), true, "moderation");
+			}
+		}
+
+		/**
+		 * Busca en el historial reciente y envia los mejores resultados solo a este
+		 * cliente, en un unico mensaje. La consulta y cada linea se recortan a
+		 * {@link #MAX_SEARCH_LINE} caracteres para que la respuesta quepa en una
+		 * trama.
+		 *
+		 * @param query terminos a buscar
+		 */
+		private void searchHistory(String query) {
+			List<String> results = history.search(query);
+			StringBuilder text = new StringBuilder("Search results for '").append(abbreviate(query)).append("': ")
+					.append(results.size());
+			for (String line : results) {
+				text.append('\n').append(abbreviate(line));
+			}
+			send(new ChatMessage(id, MessageType.MESSAGE, text.toString()));
+		}
+
+		/**
+		 * Recorta un texto a {@link #MAX_SEARCH_LINE} caracteres, terminado en
+		 * puntos suspensivos, sin partir un par sustituto.
+		 *
+		 * @param text texto
+		 * @return el mismo texto si cabe, o el recortado
+		 */
+		private String abbreviate(String text) {
+			if (text.length() <= MAX_SEARCH_LINE) {
+				return text;
+			}
+			int end = MAX_SEARCH_LINE - 3;
+			if (Character.isHighSurrogate(text.charAt(end - 1))) {
+				end--;
+			}
+			return text.substring(0, end) + "...";
+		}
+
+		/**
+		 * Envia un mensaje directo. Si el destinatario no esta conectado se guarda en
+		 * su buzon y se le entrega al volver a entrar.
+		 *
+		 * @param argument username del destinatario y texto, separados por espacio
+		 */
+		private void sendDirect(String argument) {
+			String[] parts = argument.split(" ", 2);
+			if (parts.length < 2) {
+				return;
+			}
+			String to = parts[0];
+			String text = moderation.moderate(getUsername(), parts[1]);
+			if (text == null) {
+				System.out.println("[" + getDateString() + "] Message from " + getUsername() + " blocked by moderation.");
+			} else {
+				ServerThreadForClient target = clientsMap.get(to);
+				if (target != null) {
+					target.send(new ChatMessage(id, MessageType.MESSAGE,
+							"[" + getDateString() + "] " + getUsername() + " (private): " + text));
+				} else {
+					storeDirect(to, text);
+				}
+			}
+			if (moderation.shouldBan(getUsername())) {
+				banUser(getUsername(), true, "moderation");
+			}
+		}
+
+		/**
+		 * Guarda un mensaje directo en el buzon de un usuario desconectado y avisa
+		 * al emisor.
+		 *
+		 * @param to   destinatario
+		 * @param text texto
+		 */
+		private void storeDirect(String to, String text) {
+			long now = System.currentTimeMillis();
+			String notice;
+			try {
+				notice = mailboxes.store(to, MailboxFrames.encode(now, getUsername(), text), now)
+						? "User " + to + " is offline, message saved."
+						: "Mailbox of " + to + " is full, or all mailboxes are, message not saved.";
+			} catch (IOException e) {
+				notice = "Message to " + to + " is too long, message not saved.";
+			}
+			send(new ChatMessage(id, MessageType.MESSAGE, notice));
+			// Si ha entrado mientras tanto ya ha vaciado su buzon, se le entrega ahora
+			ServerThreadForClient target = clientsMap.get(to);
+			if (target != null) {
+				target.deliverMailbox();
+			}
+		}
+
+		/**
+		 * Entrega al cliente, en un unico mensaje, los mensajes directos que ha
+		 * recibido mientras estaba desconectado.
+		 */
+		private void deliverMailbox() {
+			byte[] frames = mailboxes.take(getUsername(), System.currentTimeMillis());
+			if (frames != null) {
+				send(new ChatMessage(id, MessageType.MAILBOX, getUsername(), frames));
 			}
 		}
 
@@ -358,15 +950,14 @@ public class ChatServerImpl implements ChatServer {
 		 *         username
 		 */
 		public List<String> extractCommandAndUser(String mensaje) {
-			List<String> commands = Arrays.asList("drop", "ban", "unban");
-			// Divide el mensaje en 2 partes, usando el espacio.
-			String[] parts = mensaje.split(" ", 2);
-
-			// Comprobamos que hay dos partes en el mensaje
-			if (parts.length == 2) {
-				String command = parts[0].toLowerCase(); // la primera palabra es el comando
-				if (commands.contains(command)) {
-					return Arrays.asList(command, parts[1]); // la segundda palabra el username
+			// La primera palabra es el comando, se compara sin crear cadenas para
+			// que los mensajes normales no generen basura
+			int space = mensaje.indexOf(' ');
+			if (space > 0) {
+				for (String command : COMMANDS) {
+					if (command.length() == space && mensaje.regionMatches(true, 0, command, 0, space)) {
+						return Arrays.asList(command, mensaje.substring(space + 1)); // la segunda palabra el username
+					}
 				}
 			}
 			return null; // devuelve null si no es un comando valido
@@ -379,9 +970,13 @@ public class ChatServerImpl implements ChatServer {
 		 * @throws IOException            Signals that an I/O exception has occurred.
 		 * @throws ClassNotFoundException the class not found exception
 		 */
-		private void loginUser() throws IOException, ClassNotFoundException {
+		private void loginUser() throws IOException {
 			// Lee el primer mensaje que contiene el nombre de usuario
-			ChatMessage loginMessage = (ChatMessage) input.readObject();
+			ChatMessage loginMessage = input.readMessage();
+			record(loginMessage);
+			if (timedInput != null) {
+				timedInput.takeFirstByteNanos(); // el login no se mide
+			}
 			if (loginMessage.getType() == MessageType.MESSAGE) {
 				this.username = loginMessage.getMessage();
 				// Verificamos si el username ya existe
@@ -393,10 +988,22 @@ public class ChatServerImpl implements ChatServer {
 					return; // Salir del mtodo run sin agregar al cliente al mapa
 				} else {
 					// Si el nombre de usuario es nico, procede como de costumbre
-					clientsMap.put(getUsername(), this);
 					this.id = getNextId();
 					clientsIdMap.put(id, getUsername());
-					sendInitialConnectionMessage();
+					RetransmitWindow previous = takeDetachedWindow();
+					// Con el escritor bloqueado nadie le envia antes de adoptar la ventana, y
+					// la bienvenida no sale hasta publicar el cliente, asi que recibe todo lo
+					// que se difunda despues de completar el login
+					synchronized (writer) {
+						sendInitialConnectionMessage(previous);
+						if (previous != null) {
+							resumeWindow(previous, resumeSeq(loginMessage));
+						}
+						clientsMap.put(getUsername(), this);
+					}
+					presence.joined(getUsername());
+					send(presence.snapshot());
+					deliverMailbox();
 					System.out.println("Connected clients: " + clientsMap.size());
 				}
 			} else {
@@ -412,22 +1019,24 @@ public class ChatServerImpl implements ChatServer {
 		 * Recibe como parametros el nombre del usuario a banear y true si se quiere
 		 * banear o false si se quiere desbanear.
 		 *
+		 * El aviso se emite antes de cambiar el estado, para que llegue aunque el
+		 * usuario se banee a si mismo o lo banee la moderacion.
+		 *
 		 * @param username del cliente a banear
 		 * @param ban      true si es ban o false si no
+		 * @param by       quien banea, un usuario o la moderacion
 		 */
-		private void banUser(String username, boolean ban) {
-			bannedUsers.put(username, ban);
+		private void banUser(String username, boolean ban, String by) {
 			if (ban == true) {
-				System.out.println("[" + getDateString() + "] The client " + username + " has been banned by "
-						+ this.getUsername());
+				System.out.println("[" + getDateString() + "] The client " + username + " has been banned by " + by);
 				broadcast(new ChatMessage(this.id, MessageType.MESSAGE,
-						"The client " + username + " has been banned by " + this.getUsername()));
+						"The client " + username + " has been banned by " + by));
 			} else {
-				System.out.println("[" + getDateString() + "] The client " + username + " has been unbanned by "
-						+ this.getUsername());
+				System.out.println("[" + getDateString() + "] The client " + username + " has been unbanned by " + by);
 				broadcast(new ChatMessage(this.id, MessageType.MESSAGE,
-						"The client " + username + " has been unbanned by " + this.getUsername()));
+						"The client " + username + " has been unbanned by " + by));
 			}
+			bannedUsers.put(username, ban);
 		}
 
 		/**
@@ -443,19 +1052,11 @@ public class ChatServerImpl implements ChatServer {
 						+ this.getUsername());
 				clientToDrop.shutdownClient(); // Desconecta al cliente.
 				remove(clientToDrop.id); // Elimina al cliente del mapa de clientes.
-				try {
-					output.writeObject(new ChatMessage(this.id, MessageType.MESSAGE, "[" + getDateString()
-							+ "] The client " + username + " has been dropped by " + this.getUsername()));
-				} catch (IOException e) {
-					System.err.println("ERROR: Sending drop failure message to " + getUsername());
-				}
+				send(new ChatMessage(this.id, MessageType.MESSAGE, "[" + getDateString() + "] The client "
+						+ username + " has been dropped by " + this.getUsername()));
 			} else {
-				try {
-					output.writeObject(new ChatMessage(this.id, MessageType.MESSAGE,
-							"[" + getDateString() + "] User " + username + " not found."));
-				} catch (IOException e) {
-					System.err.println("ERROR: Sending drop failure message to " + getUsername());
-				}
+				send(new ChatMessage(this.id, MessageType.MESSAGE,
+						"[" + getDateString() + "] User " + username + " not found."));
 			}
 		}
 
@@ -468,11 +1069,7 @@ public class ChatServerImpl implements ChatServer {
 		private boolean checkUsername(String username) {
 			synchronized (clientsMap) {
 				if (clientsMap.containsKey(username)) {
-					try {
-						output.writeObject(new ChatMessage(0, MessageType.LOGOUT, "Username already exists."));
-					} catch (IOException e) {
-						System.err.println("ERROR: Could not send username exists message to client.");
-					}
+					sendUnsequenced(new ChatMessage(0, MessageType.LOGOUT, "Username already exists."));
 					return false;
 				}
 				return true;
@@ -489,30 +1086,309 @@ public class ChatServerImpl implements ChatServer {
 		}
 
 		/**
-		 * Muestra un mensaje de bienvenida al usuario, con su id.
+		 * Muestra un mensaje de bienvenida al usuario, con su id. Es la respuesta al
+		 * login y lleva la ultima secuencia que se le puede reenviar. Si retoma una
+		 * sesion, sus datos llevan en ocho bytes la ultima secuencia que ya no se le
+		 * puede reenviar, para que el cliente sepa si ha perdido mensajes.
+		 *
+		 * @param previous ventana que se va a adoptar, null si la sesion empieza de
+		 *                 cero
+		 */
+		private void sendInitialConnectionMessage(RetransmitWindow previous) {
+			String welcomeMessage = String.format("[%s] Welcome, %s! Your ID is %d. Waiting for a message...",
+					getDateString(), getUsername(), id);
+			byte[] ackedSeq = previous == null ? null : ByteBuffer.allocate(8).putLong(previous.ackedSeq()).array();
+			PooledBuffer frame = encode(new ChatMessage(id, MessageType.MESSAGE, welcomeMessage, ackedSeq));
+			try {
+				writer.enqueueLoginReply(frame, previous == null ? 0 : previous.lastSeq());
+			} finally {
+				frame.release();
+			}
+			System.out.println("[" + getDateString() + "] " + getUsername() + " has just connected to the server");
+		}
+
+		/**
+		 * Encola un mensaje en el hilo escritor del cliente. No bloquea, varios hilos
+		 * de clientes pueden difundir a la vez hacia este.
+		 *
+		 * @param msg mensaje a enviar
+		 */
+		void send(ChatMessage msg) {
+			PooledBuffer frame;
+			try {
+				frame = encode(msg);
+			} catch (IllegalArgumentException e) {
+				System.err.println("ERROR: " + msg.getType() + " not sent to client " + getUsername() + ": "
+						+ e.getMessage());
+				return;
+			}
+			try {
+				writer.enqueue(frame);
+			} finally {
+				frame.release();
+			}
+		}
+
+		/**
+		 * Encola una trama ya codificada, compartida con otros destinatarios.
+		 *
+		 * @param frame trama a enviar, el escritor toma su propia referencia
+		 */
+		void send(PooledBuffer frame) {
+			writer.enqueue(frame);
+		}
+
+		/**
+		 * Encola un mensaje sin secuencia, que no se retransmite.
+		 *
+		 * @param msg mensaje a enviar
+		 */
+		private void sendUnsequenced(ChatMessage msg) {
+			PooledBuffer frame = encode(msg);
+			try {
+				writer.enqueueUnsequenced(frame);
+			} finally {
+				frame.release();
+			}
+		}
+
+		/**
+		 * Elimina al cliente cuando falla la escritura en su canal. Solo se elimina si
+		 * sigue registrado con esta conexion.
+		 */
+		private void dropOnFailure() {
+			System.err.println("ERROR: Could not send message to client " + getUsername());
+			if (getUsername() != null && clientsMap.get(getUsername()) == this) {
+				detachWindow();
+				remove(id);
+			}
+			running = false;
+		}
+
+		/**
+		 * Confirma los mensajes recibidos por el cliente hasta la secuencia del ACK.
+		 *
+		 * @param message ACK con la ultima secuencia recibida
 		 */
-		private void sendInitialConnectionMessage() {
+		private void acknowledge(ChatMessage message) {
 			try {
-				String welcomeMessage = String.format("[%s] Welcome, %s! Your ID is %d. Waiting for a message...",
-						getDateString(), getUsername(), id);
-				output.writeObject(new ChatMessage(id, MessageType.MESSAGE, welcomeMessage));
-				System.out.println("[" + getDateString() + "] " + getUsername() + " has just connected to the server");
+				writer.window().ack(Long.parseLong(message.getMessage()));
+			} catch (NumberFormatException e) {
+				System.err.println("ERROR: Invalid ACK from client " + getUsername());
+			}
+		}
+
+		/**
+		 * Guarda la ventana de retransmision si quedan mensajes sin confirmar, para
+		 * reenviarlos si el usuario vuelve a entrar. Solo se guarda si el cliente
+		 * sigue registrado con esta conexion.
+		 */
+		private void detachWindow() {
+			RetransmitWindow window = writer.window();
+			synchronized (detachedWindows) {
+				if (getUsername() != null && clientsMap.get(getUsername()) == this && window.lag() > 0) {
+					window.detach();
+					RetransmitWindow replaced = detachedWindows.put(getUsername(), window);
+					if (replaced != null && replaced != window) {
+						replaced.discard();
+					}
+					windowDetached = true;
+				}
+			}
+		}
+
+		/**
+		 * Deja de guardar la ventana de esta sesion si se guardo por un fallo de
+		 * escritura justo antes del logout, ya que el usuario no va a retomarla. Si
+		 * otra sesion ya la ha adoptado no se toca.
+		 */
+		private void forgetDetachedWindow() {
+			synchronized (detachedWindows) {
+				if (windowDetached && detachedWindows.remove(getUsername(), writer.window())) {
+					windowDetached = false; // la libera releaseWindow
+				}
+			}
+		}
+
+		/**
+		 * Libera las tramas de la ventana de retransmision al terminar la sesion, si
+		 * no se ha guardado para retomarla.
+		 */
+		private void releaseWindow() {
+			if (writer == null) {
+				return;
+			}
+			synchronized (detachedWindows) {
+				if (!windowDetached) {
+					writer.window().discard();
+				}
+			}
+		}
+
+		/**
+		 * Saca la ventana de la sesion caida del usuario, si la hay y no ha
+		 * caducado.
+		 *
+		 * @return ventana a retomar, o null si la sesion empieza de cero
+		 */
+		private RetransmitWindow takeDetachedWindow() {
+			RetransmitWindow previous;
+			synchronized (detachedWindows) {
+				previous = detachedWindows.remove(getUsername());
+			}
+			if (previous != null && previous.expired(DETACHED_WINDOW_MILLIS)) {
+				previous.discard();
+				return null;
+			}
+			return previous;
+		}
+
+		/**
+		 * Adopta la ventana de la sesion caida del usuario y le reenvia los mensajes
+		 * que no llego a recibir. Los que salieron de la ventana al desbordarse no se
+		 * pueden reenviar; el cliente los ve como hueco en la respuesta al login.
+		 *
+		 * @param previous  ventana de la sesion caida
+		 * @param resumeSeq ultima secuencia que el cliente recibio, se confirma
+		 *                  antes de reenviar
+		 */
+		private void resumeWindow(RetransmitWindow previous, long resumeSeq) {
+			if (resumeSeq != 0 && resumeSeq < previous.ackedSeq()) {
+				System.err.println("ERROR: " + (previous.ackedSeq() - resumeSeq) + " messages to " + getUsername()
+						+ " were dropped from the retransmit window and cannot be resent");
+			}
+			previous.ack(resumeSeq);
+			System.out.println("[" + getDateString() + "] Resending " + previous.lag() + " unacknowledged messages to "
+					+ getUsername());
+			writer.adopt(previous);
+		}
+
+		/**
+		 * Lee la ultima secuencia recibida que el cliente indica en el login al
+		 * retomar una sesion: ocho bytes en los datos del mensaje.
+		 *
+		 * @param loginMessage mensaje de login
+		 * @return ultima secuencia recibida, 0 si no retoma ninguna sesion
+		 */
+		private long resumeSeq(ChatMessage loginMessage) {
+			byte[] data = loginMessage.getData();
+			return data != null && data.length == 8 ? ByteBuffer.wrap(data).getLong() : 0;
+		}
+
+		/**
+		 * Comienza la subida de un fichero ofrecido por el cliente. Solo se guarda el
+		 * nombre del fichero, sin la ruta.
+		 *
+		 * @param message oferta con el nombre del fichero
+		 */
+		private void startUpload(ChatMessage message) {
+			if (bannedUsers.getOrDefault(this.username, false)) {
+				return;
+			}
+			abortUpload();
+			String name = new File(message.getMessage()).getName();
+			try {
+				upload = sharedFiles.open(getUsername(), name);
 			} catch (IOException e) {
-				System.err.println("ERROR: Could not send initial connection message to client " + getUsername());
+				System.err.println("ERROR: Could not spool file " + name + " from " + getUsername());
+				send(new ChatMessage(id, MessageType.MESSAGE,
+						"[" + getDateString() + "] File " + name + " rejected: " + e.getMessage()));
 			}
 		}
 
 		/**
-		 * Cierra las conexiones con los clientes.
+		 * Anade un trozo a la subida en curso. El trozo vacio la cierra y ofrece el
+		 * fichero al resto de clientes.
+		 *
+		 * @param message trozo del fichero
 		 */
-		private void shutdownClient() {
+		private void appendUpload(ChatMessage message) {
+			if (upload == null) {
+				return; // subida rechazada o abortada, se ignoran sus trozos
+			}
+			byte[] data = message.getData();
+			if (data == null || data.length == 0) {
+				FileSpool done = upload;
+				upload = null;
+				shareFile(done);
+				return;
+			}
 			try {
-				running = false;
-				if (input != null) input.close();
-				if (output != null) output.close();
-				if (socket != null) socket.close();
+				upload.append(data);
 			} catch (IOException e) {
-				System.err.println("Error closing the connection to client " + getUsername());
+				System.err.println("ERROR: Could not receive file " + upload.getName() + " from " + getUsername());
+				send(new ChatMessage(id, MessageType.MESSAGE,
+						"[" + getDateString() + "] File " + upload.getName() + " rejected: " + e.getMessage()));
+				abortUpload();
+			}
+		}
+
+		/**
+		 * Ofrece el fichero subido y lo anuncia con su numero. Solo se envia a quien
+		 * lo pide con el comando get.
+		 *
+		 * @param spool fichero subido, la oferta se queda con su referencia
+		 */
+		private void shareFile(FileSpool spool) {
+			int fileId = sharedFiles.share(spool, System.currentTimeMillis());
+			System.out.println("[" + getDateString() + "] " + getUsername() + " shared file " + spool.getName() + " ("
+					+ spool.size() + " bytes) as #" + fileId);
+			broadcast(new ChatMessage(id, MessageType.MESSAGE, "shares file " + spool.getName() + " (" + spool.size()
+					+ " bytes), download it with: get " + fileId));
+		}
+
+		/**
+		 * Encola hacia este cliente la transferencia de un fichero ofrecido. Todas
+		 * las transferencias de un fichero leen del mismo fichero temporal.
+		 *
+		 * @param argument numero del fichero
+		 */
+		private void sendSharedFile(String argument) {
+			FileSpool spool = null;
+			try {
+				spool = sharedFiles.get(Integer.parseInt(argument.trim()));
+			} catch (NumberFormatException e) {
+				// no es un numero, se contesta como a un fichero que no existe
+			}
+			if (spool == null) {
+				send(new ChatMessage(id, MessageType.MESSAGE,
+						"[" + getDateString() + "] File " + argument + " is not available."));
+				return;
+			}
+			try {
+				if (!writer.enqueue(new FileTransfer(spool, transferIds.incrementAndGet(), buffers))) {
+					send(new ChatMessage(id, MessageType.MESSAGE,
+							"[" + getDateString() + "] Too many downloads in progress, try again later."));
+				}
+			} finally {
+				spool.release();
+			}
+		}
+
+		/**
+		 * Descarta la subida en curso, si la hay.
+		 */
+		private void abortUpload() {
+			if (upload != null) {
+				upload.release();
+				upload = null;
+			}
+		}
+
+		/**
+		 * Cierra las conexiones con los clientes. El hilo escritor termina de enviar
+		 * los mensajes pendientes y despues cierra la conexion.
+		 */
+		private void shutdownClient() {
+			running = false;
+			if (writer != null) {
+				writer.close();
+			} else {
+				try {
+					if (connection != null) connection.close();
+				} catch (IOException e) {
+					System.err.println("Error closing the connection to client " + getUsername());
+				}
 			}
 		}
 	}
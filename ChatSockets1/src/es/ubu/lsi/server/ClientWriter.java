@@ -0,0 +1,418 @@
+package es.ubu.lsi.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import es.ubu.lsi.common.FrameCodec;
+import es.ubu.lsi.common.FrameOutput;
+import es.ubu.lsi.common.PooledBuffer;
+import es.ubu.lsi.common.Trace;
+
+/**
+ * Hilo escritor de la conexion con un cliente.
+ *
+ * Tiene dos colas: la de mensajes de chat, que siempre tiene prioridad, y la de
+ * transferencias de ficheros. Entre mensajes de chat solo se escribe un trozo
+ * de cada transferencia por turno, en round robin, para que un fichero grande
+ * no retrase el chat en la misma conexion. El canal se vacia cuando no quedan
+ * mensajes de chat pendientes.
+ *
+ * Cada mensaje va precedido de su numero de secuencia. Los mensajes de chat se
+ * numeran al encolarse y se guardan en la {@link RetransmitWindow} hasta que el
+ * cliente los confirma. Los trozos de fichero van con secuencia 0 y no se
+ * retransmiten. La respuesta al login tampoco, y lleva la ultima secuencia que
+ * el servidor puede reenviar, para que el cliente sepa si la numeracion sigue
+ * la de su sesion anterior o empieza de nuevo, y en sus datos la ultima que ya
+ * no puede reenviar, para que sepa si ha perdido mensajes.
+ *
+ * Los mensajes llegan ya codificados en tramas del pool, compartidas con el
+ * resto de destinatarios. La cola de chat es un buffer circular de secuencias
+ * y tramas que toma una referencia de cada trama y la libera al escribirla, de
+ * modo que encolar y escribir un mensaje no crea ningun objeto.
+ *
+ * Las colas estan acotadas. Si la cola de chat llega a {@link #MAX_QUEUE}, o
+ * la ventana de retransmision se llena y el cliente lleva
+ * {@link #ACK_TIMEOUT_MILLIS} sin confirmar nada, el cliente no lee al ritmo al
+ * que se le envia y se le desconecta: su ventana se guarda y al volver a entrar
+ * recibe lo que no confirmo. Si la ventana se llena pero el cliente sigue
+ * confirmando, el mensaje mas antiguo sale de la ventana y ya no se puede
+ * reenviar, aunque sigue en la cola de chat y se entrega; si la conexion cae
+ * antes, el cliente se entera del hueco al volver a entrar. Las
+ * transferencias que no caben en {@link #MAX_TRANSFERS} se descartan.
+ *
+ * @author Jose Maria Santos
+ * @see FileTransfer
+ */
+class ClientWriter extends Thread {
+
+	/** Trozos de una misma transferencia escritos antes de ceder el turno. */
+	private static final int CHUNKS_PER_TURN = 1;
+
+	/** Capacidad inicial de la cola de chat. */
+	private static final int INITIAL_QUEUE = 64;
+
+	/** Mensajes de chat pendientes como maximo, potencia de dos. */
+	static final int MAX_QUEUE = 4096;
+
+	/** Transferencias activas como maximo. */
+	static final int MAX_TRANSFERS = 16;
+
+	/** Tiempo sin confirmar nada, con la ventana llena, tras el que se desconecta. */
+	static final long ACK_TIMEOUT_MILLIS = 10000;
+
+	/** Canal de salida. */
+	private final FrameOutput output;
+
+	/** Conexion con el cliente, se cierra al terminar. */
+	private final Closeable connection;
+
+	/** Histogramas de latencia, para los mensajes con traza. */
+	private final TraceStats stats;
+
+	/** Accion a ejecutar si falla la escritura. */
+	private final Runnable onFailure;
+
+	/** Secuencias de los mensajes de chat pendientes, en circulo. */
+	private long[] seqs = new long[INITIAL_QUEUE];
+
+	/** Tramas de los mensajes de chat pendientes, en circulo. */
+	private PooledBuffer[] frames = new PooledBuffer[INITIAL_QUEUE];
+
+	/** Posicion del primer mensaje pendiente. */
+	private int head;
+
+	/** Mensajes de chat pendientes. */
+	private int pending;
+
+	/** Ventana de retransmision de la sesion. */
+	private RetransmitWindow window = new RetransmitWindow();
+
+	/** Transferencias activas. */
+	private final Deque<FileTransfer> transfers = new ArrayDeque<FileTransfer>();
+
+	/** Indica si se ha pedido el cierre. */
+	private boolean closing;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name       nombre del hilo
+	 * @param output     canal de salida
+	 * @param connection conexion con el cliente
+	 * @param stats      histogramas de latencia
+	 * @param onFailure  accion si falla la escritura
+	 */
+	ClientWriter(String name, FrameOutput output, Closeable connection, TraceStats stats, Runnable onFailure) {
+		super(name);
+		this.output = output;
+		this.connection = connection;
+		this.stats = stats;
+		this.onFailure = onFailure;
+		setDaemon(true);
+	}
+
+	/**
+	 * Encola un mensaje de chat con la siguiente secuencia de la sesion. La cola
+	 * y la ventana toman su propia referencia de la trama.
+	 *
+	 * @param frame trama del mensaje
+	 */
+	synchronized void enqueue(PooledBuffer frame) {
+		if (closing) {
+			return;
+		}
+		if (pending == MAX_QUEUE) {
+			disconnectSlowClient("send queue full");
+			return;
+		}
+		if (window.isFull()) {
+			if (window.ackIdleMillis() > ACK_TIMEOUT_MILLIS) {
+				disconnectSlowClient("retransmit window full and no ACK in " + ACK_TIMEOUT_MILLIS + " ms");
+				return;
+			}
+			if (window.overflows() % RetransmitWindow.CAPACITY == 0) {
+				System.err.println("ERROR: Retransmit window full for " + getName() + ", " + (window.overflows() + 1)
+						+ " unacknowledged messages can no longer be resent");
+			}
+		}
+		push(window.append(frame), frame.retain());
+		notifyAll();
+	}
+
+	/**
+	 * Encola un mensaje sin secuencia, que no se retransmite. La cola toma su
+	 * propia referencia de la trama.
+	 *
+	 * @param frame trama del mensaje
+	 */
+	synchronized void enqueueUnsequenced(PooledBuffer frame) {
+		if (closing) {
+			return;
+		}
+		if (pending == MAX_QUEUE) {
+			disconnectSlowClient("send queue full");
+			return;
+		}
+		push(0, frame.retain());
+		notifyAll();
+	}
+
+	/**
+	 * Encola la respuesta al login, que no se retransmite. En lugar de su
+	 * secuencia lleva la ultima que el servidor puede reenviar: la de la ventana
+	 * adoptada, o 0 si la sesion empieza de cero.
+	 *
+	 * @param frame   trama de la respuesta
+	 * @param lastSeq ultima secuencia que se puede reenviar
+	 */
+	synchronized void enqueueLoginReply(PooledBuffer frame, long lastSeq) {
+		if (!closing) {
+			push(lastSeq, frame.retain());
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Adopta la ventana de una sesion anterior del mismo usuario y encola de nuevo
+	 * sus mensajes sin confirmar, con su secuencia original. Debe llamarse antes
+	 * de encolar mensajes con secuencia.
+	 *
+	 * @param previous ventana de la sesion anterior
+	 */
+	synchronized void adopt(RetransmitWindow previous) {
+		previous.attach();
+		window = previous;
+		window.forEachUnacked((frame, seq) -> push(seq, frame.retain()));
+		notifyAll();
+	}
+
+	/**
+	 * Devuelve la ventana de retransmision de la sesion.
+	 *
+	 * @return ventana de retransmision
+	 */
+	synchronized RetransmitWindow window() {
+		return window;
+	}
+
+	/**
+	 * Devuelve el numero de mensajes de chat pendientes de escribir.
+	 *
+	 * @return mensajes en cola
+	 */
+	synchronized int queued() {
+		return pending;
+	}
+
+	/**
+	 * Encola una transferencia de fichero, o la descarta si el cliente ya tiene
+	 * {@link #MAX_TRANSFERS} en curso.
+	 *
+	 * @param transfer transferencia
+	 * @return true si se ha encolado
+	 */
+	synchronized boolean enqueue(FileTransfer transfer) {
+		if (closing) {
+			transfer.release();
+			return false;
+		}
+		if (transfers.size() >= MAX_TRANSFERS) {
+			System.err.println("ERROR: Too many file transfers for " + getName() + ", transfer dropped");
+			transfer.release();
+			return false;
+		}
+		transfers.add(transfer);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Pide el cierre: se escriben los mensajes de chat pendientes, se descartan
+	 * las transferencias y se cierra la conexion.
+	 */
+	synchronized void close() {
+		closing = true;
+		notifyAll();
+	}
+
+	/**
+	 * Bucle de escritura.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				PooledBuffer frame = null;
+				long seq = 0;
+				FileTransfer transfer = null;
+				synchronized (this) {
+					while (pending == 0 && transfers.isEmpty() && !closing) {
+						wait();
+					}
+					if (pending > 0) {
+						seq = seqs[head];
+						frame = pop();
+					} else if (closing) {
+						break;
+					} else {
+						transfer = transfers.poll();
+					}
+				}
+				long fanOutStart = 0;
+				long writeStart = 0;
+				if (frame != null) {
+					try {
+						if (Trace.ENABLED) {
+							fanOutStart = FrameCodec.traceField(frame.buffer(), Trace.FANOUT_START);
+							writeStart = System.nanoTime();
+						}
+						output.writeLong(seq);
+						output.writeFrame(frame.buffer());
+					} finally {
+						frame.release();
+					}
+				} else {
+					writeChunks(transfer);
+				}
+				if (noPendingMessages()) {
+					output.flush();
+				}
+				if (fanOutStart != 0) {
+					stats.queue.record(writeStart - fanOutStart);
+					stats.write.record(System.nanoTime() - writeStart);
+				}
+			}
+			output.flush();
+		} catch (IOException e) {
+			onFailure.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			releaseQueued();
+			releaseTransfers();
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// la conexion ya esta cerrada
+			}
+		}
+	}
+
+	/**
+	 * Escribe el turno de una transferencia y la devuelve al final de la cola si
+	 * no ha terminado.
+	 *
+	 * @param transfer transferencia
+	 * @throws IOException si falla la escritura
+	 */
+	private void writeChunks(FileTransfer transfer) throws IOException {
+		try {
+			for (int i = 0; i < CHUNKS_PER_TURN && !transfer.isDone(); i++) {
+				PooledBuffer chunk = transfer.next();
+				try {
+					output.writeLong(0);
+					output.writeFrame(chunk.buffer());
+				} finally {
+					chunk.release();
+				}
+			}
+		} catch (IOException e) {
+			transfer.release();
+			throw e;
+		}
+		if (transfer.isDone()) {
+			transfer.release();
+		} else {
+			synchronized (this) {
+				transfers.add(transfer);
+			}
+		}
+	}
+
+	/**
+	 * Indica si no quedan mensajes de chat pendientes de escribir.
+	 *
+	 * @return true si la cola de chat esta vacia
+	 */
+	private synchronized boolean noPendingMessages() {
+		return pending == 0;
+	}
+
+	/**
+	 * Desconecta a un cliente que no lee al ritmo al que se le envia. Cerrar la
+	 * conexion despierta al escritor si esta bloqueado escribiendo, y el lector
+	 * elimina al cliente guardando su ventana de retransmision.
+	 *
+	 * @param reason motivo, para el log
+	 */
+	private void disconnectSlowClient(String reason) {
+		System.err.println("ERROR: " + reason + " for " + getName() + ", disconnecting slow client");
+		closing = true;
+		notifyAll();
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// la conexion ya esta cerrada
+		}
+	}
+
+	/**
+	 * Anade un mensaje al final de la cola de chat, duplicando su capacidad si
+	 * esta llena. Nunca pasa de {@link #MAX_QUEUE}, lo comprueba quien encola.
+	 *
+	 * @param seq   secuencia
+	 * @param frame trama, con la referencia de la cola ya tomada
+	 */
+	private void push(long seq, PooledBuffer frame) {
+		if (pending == frames.length) {
+			long[] largerSeqs = new long[pending * 2];
+			PooledBuffer[] largerFrames = new PooledBuffer[pending * 2];
+			for (int i = 0; i < pending; i++) {
+				largerSeqs[i] = seqs[(head + i) % pending];
+				largerFrames[i] = frames[(head + i) % pending];
+			}
+			seqs = largerSeqs;
+			frames = largerFrames;
+			head = 0;
+		}
+		int tail = (head + pending) % frames.length;
+		seqs[tail] = seq;
+		frames[tail] = frame;
+		pending++;
+	}
+
+	/**
+	 * Saca el primer mensaje de la cola de chat.
+	 *
+	 * @return trama, con la referencia de la cola
+	 */
+	private PooledBuffer pop() {
+		PooledBuffer frame = frames[head];
+		frames[head] = null;
+		head = (head + 1) % frames.length;
+		pending--;
+		return frame;
+	}
+
+	/**
+	 * Libera los mensajes de chat que no se han llegado a escribir.
+	 */
+	private synchronized void releaseQueued() {
+		closing = true; // no se aceptan mas mensajes
+		while (pending > 0) {
+			pop().release();
+		}
+	}
+
+	/**
+	 * Libera las transferencias que no se han llegado a terminar.
+	 */
+	private synchronized void releaseTransfers() {
+		FileTransfer transfer;
+		while ((transfer = transfers.poll()) != null) {
+			transfer.release();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fichero temporal donde el servidor vuelca un fichero subido por un cliente.
+ *
+ * El contenido se escribe una sola vez y despues se lee con lecturas
+ * posicionales, de modo que todas las transferencias hacia los destinatarios
+ * comparten el mismo fichero sin copias intermedias. Lleva un contador de
+ * referencias y el fichero se borra al liberar la ultima. Cada trozo reserva su
+ * espacio en {@link SharedFiles}, que lo recupera al borrarse el fichero.
+ *
+ * @author Jose Maria Santos
+ * @see FileTransfer
+ * @see SharedFiles
+ */
+class FileSpool {
+
+	/** Tamano maximo de un fichero subido, en bytes. */
+	static final long MAX_SIZE = 64L * 1024 * 1024;
+
+	/** Nombre del fichero ofrecido. */
+	private final String name;
+
+	/** Usuario que sube el fichero. */
+	private final String owner;
+
+	/** Registro que lleva la cuenta del espacio. */
+	private final SharedFiles files;
+
+	/** Bytes reservados en el registro. */
+	private long reserved;
+
+	/** Canal del fichero temporal. */
+	private final FileChannel channel;
+
+	/** Bytes escritos. */
+	private long size;
+
+	/** Referencias vivas, la del uploader y una por transferencia. */
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	/**
+	 * Crea el fichero temporal, que se borra al cerrar el canal.
+	 *
+	 * @param name  nombre del fichero ofrecido
+	 * @param owner usuario que sube el fichero
+	 * @param files registro que lleva la cuenta del espacio
+	 * @throws IOException si no se puede crear el fichero temporal
+	 * @see SharedFiles#open(String, String)
+	 */
+	FileSpool(String name, String owner, SharedFiles files) throws IOException {
+		this.name = name;
+		this.owner = owner;
+		this.files = files;
+		Path path = Files.createTempFile("chat-spool-", ".tmp");
+		this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * Anade un trozo al final del fichero.
+	 *
+	 * @param data trozo recibido
+	 * @throws IOException si se supera el tamano maximo, no queda espacio en el
+	 *                     servidor o falla la escritura
+	 */
+	void append(byte[] data) throws IOException {
+		if (size + data.length > MAX_SIZE) {
+			throw new IOException("File " + name + " exceeds " + MAX_SIZE + " bytes");
+		}
+		files.reserve(data.length);
+		reserved += data.length;
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			size += channel.write(buffer, size);
+		}
+	}
+
+	/**
+	 * Lee desde una posicion sin mover el puntero compartido del canal.
+	 *
+	 * @param position posicion de lectura
+	 * @param dst      buffer destino
+	 * @return bytes leidos, -1 al final del fichero
+	 * @throws IOException si falla la lectura
+	 */
+	int read(long position, ByteBuffer dst) throws IOException {
+		return channel.read(dst, position);
+	}
+
+	/**
+	 * Devuelve el nombre del fichero ofrecido.
+	 *
+	 * @return nombre del fichero
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Devuelve el tamano del fichero.
+	 *
+	 * @return bytes escritos
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Anade una referencia.
+	 *
+	 * @return este mismo fichero
+	 */
+	FileSpool retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Devuelve el numero de referencias.
+	 *
+	 * @return referencias, 0 si el fichero ya se ha borrado
+	 */
+	int refCount() {
+		return refs.get();
+	}
+
+	/**
+	 * Libera una referencia, al liberar la ultima se cierra y borra el fichero y
+	 * se devuelve su espacio.
+	 */
+	void release() {
+		if (refs.decrementAndGet() == 0) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("ERROR: Could not delete spool file for " + name);
+			}
+			files.deleted(owner, reserved);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package es.ubu.lsi.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import es.ubu.lsi.common.BufferPool;
+import es.ubu.lsi.common.FrameCodec;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.PooledBuffer;
+
+/**
+ * Transferencia de un fichero hacia un destinatario que lo ha pedido.
+ *
+ * Produce primero la cabecera (FILE) y despues los trozos (FILE_CHUNK) leidos del
+ * {@link FileSpool}, terminando con un trozo vacio. El ID de los mensajes es el
+ * de la transferencia, para que el cliente pueda separar varias transferencias
+ * intercaladas en la misma conexion.
+ *
+ * Cada trozo se codifica en una trama del pool: se escribe la cabecera y a
+ * continuacion se lee el fichero directamente sobre el buffer, sin copias
+ * intermedias en el heap.
+ *
+ * @author Jose Maria Santos
+ */
+class FileTransfer {
+
+	/** Tamano de cada trozo, en bytes. */
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Fichero compartido. */
+	private final FileSpool spool;
+
+	/** ID de la transferencia. */
+	private final int transferId;
+
+	/** Pool de las tramas. */
+	private final BufferPool pool;
+
+	/** Posicion de lectura. */
+	private long position;
+
+	/** Indica si ya se ha enviado la cabecera. */
+	private boolean offered;
+
+	/** Indica si ya se ha enviado el ultimo trozo. */
+	private boolean done;
+
+	/**
+	 * Constructor, la transferencia adquiere una referencia del fichero.
+	 *
+	 * @param spool      fichero a enviar
+	 * @param transferId ID de la transferencia
+	 * @param pool       pool de las tramas
+	 */
+	FileTransfer(FileSpool spool, int transferId, BufferPool pool) {
+		this.spool = spool.retain();
+		this.transferId = transferId;
+		this.pool = pool;
+	}
+
+	/**
+	 * Devuelve la trama del siguiente mensaje de la transferencia, con una
+	 * referencia que debe liberar quien la escribe.
+	 *
+	 * @return cabecera, trozo o trozo vacio final
+	 * @throws IOException si falla la lectura del fichero
+	 */
+	PooledBuffer next() throws IOException {
+		if (!offered) {
+			offered = true;
+			return frame(MessageType.FILE, -1);
+		}
+		int length = (int) Math.min(CHUNK_SIZE, spool.size() - position);
+		PooledBuffer frame = frame(MessageType.FILE_CHUNK, length);
+		try {
+			ByteBuffer buffer = frame.buffer();
+			buffer.limit(buffer.position() + length);
+			while (buffer.hasRemaining()) {
+				if (spool.read(position + length - buffer.remaining(), buffer) < 0) {
+					throw new EOFException("File " + spool.getName() + " is shorter than expected");
+				}
+			}
+			buffer.flip();
+		} catch (IOException e) {
+			frame.release();
+			throw e;
+		}
+		position += length;
+		done = length == 0;
+		return frame;
+	}
+
+	/**
+	 * Toma una trama del pool y escribe la cabecera del mensaje.
+	 *
+	 * @param type       tipo del mensaje
+	 * @param dataLength bytes del trozo que siguen a la cabecera, -1 sin datos
+	 * @return trama, con la posicion al final de la cabecera
+	 */
+	private PooledBuffer frame(MessageType type, int dataLength) {
+		PooledBuffer frame = pool.acquire(FrameCodec.encodedLength(spool.getName(), 0, Math.max(0, dataLength)));
+		FrameCodec.encodeHeader(transferId, type, spool.getName(), dataLength, frame.buffer());
+		if (dataLength < 0) {
+			frame.buffer().flip();
+		}
+		return frame;
+	}
+
+	/**
+	 * Indica si se ha enviado el trozo final.
+	 *
+	 * @return true si la transferencia ha terminado
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Libera la referencia del fichero.
+	 */
+	void release() {
+		spool.release();
+	}
+}
@@ -0,0 +1,231 @@
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Automata de Aho-Corasick para buscar muchas palabras a la vez.
+ *
+ * Se construye una sola vez a partir de la lista de palabras y se compila a un
+ * automata determinista: una tabla de transiciones por estado sobre el
+ * alfabeto de las palabras, de modo que el texto se recorre en una sola pasada
+ * con un acceso a la tabla por caracter, sin retrocesos, sea cual sea el numero
+ * de palabras. Es inmutable y se puede usar desde varios hilos.
+ *
+ * La busqueda no distingue mayusculas de minusculas.
+ *
+ * La tabla ocupa estados por ancho del alfabeto. Una lista cuya tabla pasaria
+ * de {@link #MAX_TABLE} entradas se rechaza en lugar de agotar la memoria.
+ *
+ * @author Jose Maria Santos
+ * @see ModerationFilter
+ */
+class KeywordAutomaton {
+
+	/** Entradas maximas de la tabla de transiciones, 64 MB. */
+	static final int MAX_TABLE = 16 * 1024 * 1024;
+
+	/** Automata vacio, no encuentra nada. */
+	static final KeywordAutomaton EMPTY = new KeywordAutomaton(Arrays.<String>asList(), new boolean[0]);
+
+	/** Indice en el alfabeto de cada caracter, 0 si no aparece en ninguna palabra. */
+	private final int[] alphabet = new int[Character.MAX_VALUE + 1];
+
+	/** Tamano del alfabeto, incluido el caracter 0 para el resto. */
+	private final int width;
+
+	/** Transiciones: estado * ancho + caracter. */
+	private final int[] delta;
+
+	/** Longitud de la palabra mas larga que termina en cada estado, 0 si ninguna. */
+	private final int[] matchLength;
+
+	/** Si alguna palabra que termina en cada estado, o en sus sufijos, bloquea. */
+	private final boolean[] blocks;
+
+	/** Siguiente estado con palabra siguiendo los enlaces de fallo, -1 si no hay. */
+	private final int[] outputLink;
+
+	/** Numero de palabras. */
+	private final int size;
+
+	/**
+	 * Construye el automata.
+	 *
+	 * @param words palabras a buscar
+	 * @param block para cada palabra, true si bloquea el mensaje y false si solo
+	 *              se enmascara
+	 * @throws IllegalArgumentException si la tabla pasaria de {@link #MAX_TABLE}
+	 *                                  entradas
+	 */
+	KeywordAutomaton(List<String> words, boolean[] block) {
+		this.size = words.size();
+		int symbols = 1;
+		long states = 1;
+		for (String word : words) {
+			for (int i = 0; i < word.length(); i++) {
+				char c = Character.toLowerCase(word.charAt(i));
+				if (alphabet[c] == 0) {
+					alphabet[c] = symbols++;
+				}
+			}
+			states += word.length();
+		}
+		this.width = symbols;
+		if (states * width > MAX_TABLE) {
+			throw new IllegalArgumentException("Keyword table too large: " + states + " states of " + width
+					+ " symbols, at most " + MAX_TABLE + " entries");
+		}
+
+		// Trie, como automata incompleto: -1 es transicion sin definir
+		int[] trie = new int[(int) states * width];
+		Arrays.fill(trie, -1);
+		int[] length = new int[(int) states];
+		boolean[] blocking = new boolean[(int) states];
+		int used = 1;
+		for (int w = 0; w < words.size(); w++) {
+			String word = words.get(w);
+			if (word.isEmpty()) {
+				continue;
+			}
+			int state = 0;
+			for (int i = 0; i < word.length(); i++) {
+				int symbol = alphabet[Character.toLowerCase(word.charAt(i))];
+				if (trie[state * width + symbol] < 0) {
+					trie[state * width + symbol] = used++;
+				}
+				state = trie[state * width + symbol];
+			}
+			length[state] = word.length();
+			blocking[state] |= block[w];
+		}
+
+		// Recorrido en anchura: enlaces de fallo y transiciones completas
+		this.delta = Arrays.copyOf(trie, used * width);
+		this.matchLength = Arrays.copyOf(length, used);
+		this.blocks = Arrays.copyOf(blocking, used);
+		this.outputLink = new int[used];
+		int[] fail = new int[used];
+		int[] queue = new int[used];
+		int head = 0;
+		int tail = 0;
+		Arrays.fill(outputLink, -1);
+		for (int symbol = 0; symbol < width; symbol++) {
+			int next = delta[symbol];
+			if (next < 0) {
+				delta[symbol] = 0;
+			} else {
+				fail[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			int f = fail[state];
+			outputLink[state] = matchLength[f] > 0 ? f : outputLink[f];
+			blocks[state] |= outputLink[state] >= 0 && blocks[outputLink[state]];
+			for (int symbol = 0; symbol < width; symbol++) {
+				int next = delta[state * width + symbol];
+				if (next < 0) {
+					delta[state * width + symbol] = delta[f * width + symbol];
+				} else {
+					fail[next] = delta[f * width + symbol];
+					queue[tail++] = next;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Busca las palabras en el texto en una sola pasada.
+	 *
+	 * @param text texto a revisar
+	 * @return resultado con las posiciones a enmascarar, o null si no hay
+	 *         ninguna palabra
+	 */
+	Match scan(String text) {
+		if (size == 0) {
+			return null;
+		}
+		Match match = null;
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = delta[state * width + alphabet[Character.toLowerCase(text.charAt(i))]];
+			int found = matchLength[state] > 0 ? state : outputLink[state];
+			if (found >= 0) {
+				if (match == null) {
+					match = new Match(text.length());
+				}
+				match.blocked |= blocks[state];
+				// Basta con la mas larga, las de los enlaces de salida son sufijos suyos
+				match.mask(i + 1 - matchLength[found], i + 1);
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Devuelve el numero de palabras.
+	 *
+	 * @return numero de palabras
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Resultado de una busqueda.
+	 */
+	static class Match {
+
+		/** Caracteres a enmascarar. */
+		private final boolean[] masked;
+
+		/** Si alguna palabra encontrada bloquea el mensaje. */
+		private boolean blocked;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param length longitud del texto
+		 */
+		Match(int length) {
+			this.masked = new boolean[length];
+		}
+
+		/**
+		 * Marca un rango para enmascarar.
+		 *
+		 * @param from inicio, incluido
+		 * @param to   fin, excluido
+		 */
+		private void mask(int from, int to) {
+			Arrays.fill(masked, from, to, true);
+		}
+
+		/**
+		 * Indica si el mensaje debe bloquearse.
+		 *
+		 * @return true si se bloquea
+		 */
+		boolean isBlocked() {
+			return blocked;
+		}
+
+		/**
+		 * Aplica la mascara al texto.
+		 *
+		 * @param text texto revisado
+		 * @return texto con las palabras sustituidas por asteriscos
+		 */
+		String apply(String text) {
+			char[] chars = text.toCharArray();
+			for (int i = 0; i < chars.length; i++) {
+				if (masked[i]) {
+					chars[i] = '*';
+				}
+			}
+			return new String(chars);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import es.ubu.lsi.common.MailboxFrames;
+
+/**
+ * Buzones de mensajes directos para usuarios desconectados.
+ *
+ * Cada buzon guarda las tramas ya codificadas con {@link MailboxFrames}, una
+ * detras de otra en un unico array de bytes, de modo que al entregarlas basta
+ * con copiar el rango ocupado. Los buzones tienen un maximo de mensajes y de
+ * bytes, y los mensajes caducan pasado {@link #EXPIRY_MILLIS}. Los caducados se
+ * descartan al guardar o entregar, y los buzones vacios cuando se llega al
+ * maximo de buzones o de bytes.
+ *
+ * Entre todos los buzones no reservan mas de {@link #MAX_TOTAL_BYTES}: con el
+ * maximo de buzones llenos se necesitarian varios cientos de megas.
+ *
+ * @author Jose Maria Santos
+ */
+class MailboxStore {
+
+	/** Mensajes por buzon. */
+	static final int MAX_MESSAGES = 100;
+
+	/** Bytes por buzon. */
+	static final int MAX_BYTES = 64 * 1024;
+
+	/** Numero maximo de buzones. */
+	static final int MAX_MAILBOXES = 10000;
+
+	/** Bytes reservados entre todos los buzones. */
+	static final long MAX_TOTAL_BYTES = 16 * 1024 * 1024;
+
+	/** Tiempo que se guarda un mensaje, en milisegundos. */
+	static final long EXPIRY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	/** Buzones por username. */
+	private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+
+	/** Bytes reservados por los arrays de todos los buzones. */
+	private long allocated;
+
+	/**
+	 * Guarda un mensaje en el buzon de un usuario.
+	 *
+	 * @param username destinatario
+	 * @param frame    mensaje codificado
+	 * @param now      hora actual, en milisegundos
+	 * @return false si el buzon, o el almacen, esta lleno
+	 */
+	synchronized boolean store(String username, byte[] frame, long now) {
+		Mailbox mailbox = mailboxes.get(username);
+		boolean created = mailbox == null;
+		if (created) {
+			if (mailboxes.size() >= MAX_MAILBOXES) {
+				purgeExpired(now, null);
+				if (mailboxes.size() >= MAX_MAILBOXES) {
+					return false;
+				}
+			}
+			mailbox = new Mailbox();
+		} else {
+			mailbox.expire(now);
+		}
+		int capacity = mailbox.capacityFor(frame.length);
+		if (capacity < 0) {
+			return false;
+		}
+		int growth = capacity - mailbox.data.length;
+		if (allocated + growth > MAX_TOTAL_BYTES) {
+			purgeExpired(now, mailbox);
+			if (allocated + growth > MAX_TOTAL_BYTES) {
+				return false;
+			}
+		}
+		mailbox.append(frame, capacity);
+		allocated += growth;
+		if (created) {
+			// Solo se registra cuando ya tiene el mensaje, nunca queda un buzon vacio
+			mailboxes.put(username, mailbox);
+		}
+		return true;
+	}
+
+	/**
+	 * Saca todos los mensajes del buzon de un usuario.
+	 *
+	 * @param username usuario
+	 * @param now      hora actual, en milisegundos
+	 * @return tramas seguidas, o null si no tiene mensajes
+	 */
+	synchronized byte[] take(String username, long now) {
+		Mailbox mailbox = mailboxes.remove(username);
+		if (mailbox == null) {
+			return null;
+		}
+		allocated -= mailbox.data.length;
+		mailbox.expire(now);
+		return mailbox.count == 0 ? null : Arrays.copyOfRange(mailbox.data, mailbox.start, mailbox.end);
+	}
+
+	/**
+	 * Devuelve el numero de buzones.
+	 *
+	 * @return buzones con mensajes o pendientes de purgar
+	 */
+	synchronized int size() {
+		return mailboxes.size();
+	}
+
+	/**
+	 * Devuelve los bytes reservados por todos los buzones.
+	 *
+	 * @return bytes reservados
+	 */
+	synchronized long allocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * Descarta los mensajes caducados y los buzones que quedan vacios.
+	 *
+	 * @param now  hora actual, en milisegundos
+	 * @param keep buzon que no se descarta aunque quede vacio, porque se va a
+	 *             guardar en el, o null
+	 */
+	private void purgeExpired(long now, Mailbox keep) {
+		for (Iterator<Mailbox> it = mailboxes.values().iterator(); it.hasNext();) {
+			Mailbox mailbox = it.next();
+			mailbox.expire(now);
+			if (mailbox.count == 0 && mailbox != keep) {
+				allocated -= mailbox.data.length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Buzon de un usuario: tramas en orden de llegada entre start y end.
+	 */
+	private static final class Mailbox {
+
+		/** Tamano del array con la primera trama. */
+		private static final int INITIAL_CAPACITY = 256;
+
+		/** Tramas, vacio hasta guardar la primera. */
+		private byte[] data = new byte[0];
+
+		/** Inicio de la primera trama. */
+		private int start;
+
+		/** Fin de la ultima trama. */
+		private int end;
+
+		/** Numero de tramas. */
+		private int count;
+
+		/**
+		 * Calcula el tamano del array necesario para anadir una trama.
+		 *
+		 * @param length longitud de la trama
+		 * @return tamano del array, el actual si cabe compactando, o -1 si el buzon
+		 *         esta lleno
+		 */
+		int capacityFor(int length) {
+			int used = end - start;
+			if (count >= MAX_MESSAGES || used + length > MAX_BYTES) {
+				return -1;
+			}
+			if (used + length <= data.length) {
+				return data.length;
+			}
+			return Math.min(MAX_BYTES, Math.max(Math.max(data.length * 2, INITIAL_CAPACITY), used + length));
+		}
+
+		/**
+		 * Anade una trama al final.
+		 *
+		 * @param frame    trama
+		 * @param capacity tamano del array, calculado con {@link #capacityFor(int)}
+		 */
+		void append(byte[] frame, int capacity) {
+			int used = end - start;
+			if (end + frame.length > data.length) {
+				// Primero se compacta, y si no basta se amplia
+				byte[] target = capacity > data.length ? new byte[capacity] : data;
+				System.arraycopy(data, start, target, 0, used);
+				data = target;
+				start = 0;
+				end = used;
+			}
+			System.arraycopy(frame, 0, data, end, frame.length);
+			end += frame.length;
+			count++;
+		}
+
+		/**
+		 * Descarta las tramas caducadas, que son siempre las primeras.
+		 *
+		 * @param now hora actual, en milisegundos
+		 */
+		void expire(long now) {
+			while (count > 0 && MailboxFrames.time(data, start) < now - EXPIRY_MILLIS) {
+				start += MailboxFrames.length(data, start);
+				count--;
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package es.ubu.lsi.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtro de moderacion de los mensajes antes de su difusion.
+ *
+ * Las palabras prohibidas se leen de un fichero de texto, una por linea. Las
+ * lineas que empiezan por {@code !} bloquean el mensaje completo, el resto solo
+ * se sustituyen por asteriscos. Las lineas vacias y las que empiezan por
+ * {@code #} se ignoran.
+ *
+ * El fichero se compila a un {@link KeywordAutomaton} que revisa cada mensaje
+ * en una sola pasada. Se comprueba periodicamente si el fichero ha cambiado, por
+ * su fecha de modificacion o su tamano, y si es asi se compila un automata nuevo
+ * y se sustituye sin parar el servidor. Si el fichero no se puede leer o es
+ * demasiado grande se sigue usando el automata anterior y se vuelve a intentar
+ * en la siguiente comprobacion.
+ *
+ * Cada mensaje bloqueado o enmascarado cuenta como una falta del usuario; al
+ * llegar a {@link #MAX_STRIKES} faltas el servidor lo banea.
+ *
+ * @author Jose Maria Santos
+ */
+class ModerationFilter {
+
+	/** Faltas que provocan el baneo. */
+	static final int MAX_STRIKES = 3;
+
+	/** Intervalo de comprobacion del fichero, en segundos. */
+	private static final long RELOAD_SECONDS = 5;
+
+	/** Fichero de palabras prohibidas. */
+	private final File file;
+
+	/** Automata en uso, se sustituye entero al recargar. */
+	private volatile KeywordAutomaton automaton = KeywordAutomaton.EMPTY;
+
+	/** Fecha de modificacion del fichero cargado. */
+	private long loadedModified = -1;
+
+	/** Tamano del fichero cargado. */
+	private long loadedLength = -1;
+
+	/** Faltas por usuario. */
+	private final Map<String, Integer> strikes = new ConcurrentHashMap<String, Integer>();
+
+	/** Hilo que recarga el fichero. */
+	private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ModerationReloader");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Constructor, carga el fichero si existe y programa su recarga.
+	 *
+	 * @param file fichero de palabras prohibidas
+	 */
+	ModerationFilter(File file) {
+		this.file = file;
+		reloadIfChanged();
+		reloader.scheduleWithFixedDelay(this::reloadIfChanged, RELOAD_SECONDS, RELOAD_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Revisa un mensaje.
+	 *
+	 * @param username autor del mensaje
+	 * @param text     texto del mensaje
+	 * @return texto a difundir, enmascarado si hace falta, o null si se bloquea
+	 */
+	String moderate(String username, String text) {
+		KeywordAutomaton.Match match = automaton.scan(text);
+		if (match == null) {
+			return text;
+		}
+		strikes.merge(username, 1, Integer::sum);
+		return match.isBlocked() ? null : match.apply(text);
+	}
+
+	/**
+	 * Indica si el usuario ha llegado al maximo de faltas. Si es asi, se reinicia
+	 * su cuenta para cuando se le desbanee.
+	 *
+	 * @param username usuario
+	 * @return true si debe banearse
+	 */
+	boolean shouldBan(String username) {
+		Integer count = strikes.get(username);
+		if (count != null && count >= MAX_STRIKES) {
+			strikes.remove(username);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Detiene la recarga del fichero.
+	 */
+	void shutdown() {
+		reloader.shutdownNow();
+	}
+
+	/**
+	 * Compila de nuevo el fichero si ha cambiado desde la ultima carga correcta.
+	 * La fecha solo se anota si la carga termina bien, de modo que un fichero a
+	 * medio escribir o ilegible se reintenta en la siguiente comprobacion.
+	 */
+	synchronized void reloadIfChanged() {
+		long modified = file.lastModified(); // 0 si no existe
+		long length = file.length();
+		if (modified == loadedModified && length == loadedLength) {
+			return;
+		}
+		if (modified == 0) {
+			automaton = KeywordAutomaton.EMPTY;
+			loadedModified = modified;
+			loadedLength = length;
+			return;
+		}
+		try {
+			List<String> words = new ArrayList<String>();
+			List<Boolean> blocking = new ArrayList<Boolean>();
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String word = line.trim();
+				if (word.isEmpty() || word.startsWith("#")) {
+					continue;
+				}
+				boolean block = word.startsWith("!");
+				words.add(block ? word.substring(1) : word);
+				blocking.add(block);
+			}
+			boolean[] block = new boolean[blocking.size()];
+			for (int i = 0; i < block.length; i++) {
+				block[i] = blocking.get(i);
+			}
+			automaton = new KeywordAutomaton(words, block);
+			loadedModified = modified;
+			loadedLength = length;
+			System.out.println("Moderation list loaded: " + automaton.size() + " words from " + file);
+		} catch (IOException e) {
+			System.err.println("ERROR: Could not load moderation list " + file);
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: Moderation list " + file + " not loaded, keeping the previous one: "
+					+ e.getMessage());
+		}
+	}
+}
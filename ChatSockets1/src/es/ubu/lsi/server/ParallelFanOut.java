@@ -0,0 +1,156 @@
+package es.ubu.lsi.server;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Reparto de un mensaje a todos los destinatarios.
+ *
+ * Por debajo de un umbral de destinatarios se recorren en el propio hilo. Por
+ * encima, se divide el conjunto en trozos de {@link #CHUNK_SIZE} que se
+ * encolan en paralelo en un pool de robo de tareas (ForkJoin). El hilo que
+ * reparte espera a que terminen todos los trozos, y como los mensajes de un
+ * emisor se reparten siempre desde su hilo, uno detras de otro, cada
+ * destinatario los recibe en el orden en que los envio.
+ *
+ * El umbral se configura con la propiedad {@code chat.fanout.threshold}. Con un
+ * solo procesador se reparte siempre en el propio hilo.
+ *
+ * @author Jose Maria Santos
+ * @param <T> tipo de los destinatarios
+ */
+class ParallelFanOut<T> {
+
+	/** Umbral de destinatarios por defecto para repartir en paralelo. */
+	static final int DEFAULT_THRESHOLD = 2048;
+
+	/** Destinatarios que se encolan en la misma tarea, sin dividir mas. */
+	static final int CHUNK_SIZE = 512;
+
+	/** Destinatarios a partir de los cuales se reparte en paralelo. */
+	private final int threshold;
+
+	/** Hilos del pool, uno por procesador. */
+	private final int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/** Pool de reparto, se crea con el primer reparto en paralelo. */
+	private volatile ForkJoinPool pool;
+
+	/**
+	 * Constructor, lee el umbral de la propiedad chat.fanout.threshold.
+	 */
+	ParallelFanOut() {
+		this(Integer.getInteger("chat.fanout.threshold", DEFAULT_THRESHOLD));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threshold destinatarios a partir de los cuales se reparte en paralelo
+	 */
+	ParallelFanOut(int threshold) {
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Aplica la accion a todos los destinatarios y vuelve cuando ha terminado con
+	 * todos.
+	 *
+	 * @param recipients destinatarios
+	 * @param action     accion sobre cada destinatario, debe admitir llamadas
+	 *                   concurrentes para destinatarios distintos
+	 */
+	void forEach(Collection<T> recipients, Consumer<? super T> action) {
+		if (recipients.size() < threshold || parallelism == 1) {
+			for (T recipient : recipients) {
+				action.accept(recipient);
+			}
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		T[] targets = (T[]) recipients.toArray();
+		pool().invoke(new Chunk<T>(targets, 0, targets.length, action));
+	}
+
+	/**
+	 * Detiene el pool de reparto.
+	 */
+	void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Devuelve el pool de reparto, creandolo si hace falta. Salas pequenas nunca
+	 * lo crean.
+	 *
+	 * @return pool
+	 */
+	private ForkJoinPool pool() {
+		ForkJoinPool current = pool;
+		if (current == null) {
+			synchronized (this) {
+				current = pool;
+				if (current == null) {
+					current = new ForkJoinPool(parallelism);
+					pool = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Trozo de destinatarios: se divide por la mitad hasta
+	 * {@link ParallelFanOut#CHUNK_SIZE} y despues se recorre.
+	 *
+	 * @param <T> tipo de los destinatarios
+	 */
+	private static final class Chunk<T> extends RecursiveAction {
+
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+
+		/** Todos los destinatarios. */
+		private final T[] targets;
+
+		/** Inicio del trozo, incluido. */
+		private final int from;
+
+		/** Fin del trozo, excluido. */
+		private final int to;
+
+		/** Accion sobre cada destinatario. */
+		private final Consumer<? super T> action;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param targets destinatarios
+		 * @param from    inicio, incluido
+		 * @param to      fin, excluido
+		 * @param action  accion
+		 */
+		Chunk(T[] targets, int from, int to, Consumer<? super T> action) {
+			this.targets = targets;
+			this.from = from;
+			this.to = to;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK_SIZE) {
+				for (int i = from; i < to; i++) {
+					action.accept(targets[i]);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Chunk<T>(targets, from, middle, action), new Chunk<T>(targets, middle, to, action));
+		}
+	}
+}
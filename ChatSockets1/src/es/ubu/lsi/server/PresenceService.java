@@ -0,0 +1,163 @@
+package es.ubu.lsi.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Servicio de presencia: usuarios conectados con un numero de version.
+ *
+ * Cada alta o baja incrementa la version. El snapshot completo se construye
+ * una sola vez por version y se comparte entre todas las peticiones. Las altas
+ * y bajas se acumulan y se difunden cada {@link #FLUSH_MILLIS} ms como un unico
+ * delta, de modo que una avalancha de logins produce un solo mensaje en vez de
+ * uno por usuario y cliente. El delta lleva el estado final de cada usuario que
+ * ha cambiado; aplicarlo sobre una vista de cualquier version del intervalo da
+ * el mismo resultado.
+ *
+ * Formato del texto de los mensajes PRESENCE, con una linea por elemento:
+ * <ul>
+ * <li>snapshot: {@code snapshot <version>} y un usuario por linea.</li>
+ * <li>delta: {@code delta <desde> <hasta>} y {@code +usuario} o
+ * {@code -usuario} por linea.</li>
+ * </ul>
+ *
+ * @author Jose Maria Santos
+ */
+class PresenceService {
+
+	/** Intervalo de agrupacion de los deltas, en milisegundos. */
+	static final long FLUSH_MILLIS = 100;
+
+	/** Usuarios conectados, ordenados. */
+	private final TreeSet<String> online = new TreeSet<String>();
+
+	/** Cambios pendientes de difundir: true alta, false baja. */
+	private final Map<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+
+	/** Version actual. */
+	private long version;
+
+	/** Version del ultimo delta difundido. */
+	private long flushedVersion;
+
+	/** Snapshot cacheado, null si ha cambiado la version. */
+	private ChatMessage snapshot;
+
+	/** Si se ha entregado algun snapshot desde el ultimo delta. */
+	private boolean snapshotServed;
+
+	/** Destino de los deltas. */
+	private final Consumer<ChatMessage> sink;
+
+	/** Hilo que difunde los deltas. */
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "PresenceFlusher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Constructor, arranca la difusion periodica de deltas.
+	 *
+	 * @param sink destino de los deltas, normalmente la difusion a los clientes
+	 */
+	PresenceService(Consumer<ChatMessage> sink) {
+		this.sink = sink;
+		flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Registra el alta de un usuario.
+	 *
+	 * @param username usuario conectado
+	 */
+	synchronized void joined(String username) {
+		if (online.add(username)) {
+			change(username, true);
+		}
+	}
+
+	/**
+	 * Registra la baja de un usuario.
+	 *
+	 * @param username usuario desconectado
+	 */
+	synchronized void left(String username) {
+		if (online.remove(username)) {
+			change(username, false);
+		}
+	}
+
+	/**
+	 * Devuelve el snapshot de la version actual, construyendolo solo si ha
+	 * cambiado desde la ultima peticion.
+	 *
+	 * @return mensaje PRESENCE con el snapshot
+	 */
+	synchronized ChatMessage snapshot() {
+		if (snapshot == null) {
+			StringBuilder text = new StringBuilder("snapshot ").append(version);
+			for (String username : online) {
+				text.append('\n').append(username);
+			}
+			snapshot = new ChatMessage(0, MessageType.PRESENCE, text.toString());
+		}
+		snapshotServed = true;
+		return snapshot;
+	}
+
+	/**
+	 * Detiene la difusion de deltas.
+	 */
+	void shutdown() {
+		flusher.shutdownNow();
+	}
+
+	/**
+	 * Anota un cambio. Un alta y una baja del mismo usuario en el mismo intervalo
+	 * se anulan entre si, salvo que se haya entregado un snapshot en ese
+	 * intervalo: ese snapshot puede contener el alta y el cliente necesita la baja
+	 * para quitarla, asi que se difunde el ultimo estado.
+	 *
+	 * @param username usuario
+	 * @param joined   true si es alta
+	 */
+	private void change(String username, boolean joined) {
+		version++;
+		snapshot = null;
+		Boolean previous = pending.remove(username);
+		if (previous == null || previous.booleanValue() == joined || snapshotServed) {
+			pending.put(username, joined);
+		}
+	}
+
+	/**
+	 * Difunde los cambios acumulados como un unico delta.
+	 */
+	void flush() {
+		ChatMessage delta;
+		synchronized (this) {
+			snapshotServed = false;
+			if (pending.isEmpty()) {
+				flushedVersion = version; // altas y bajas anuladas, no hay nada que difundir
+				return;
+			}
+			StringBuilder text = new StringBuilder("delta ").append(flushedVersion).append(' ').append(version);
+			for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+				text.append('\n').append(entry.getValue() ? '+' : '-').append(entry.getKey());
+			}
+			pending.clear();
+			flushedVersion = version;
+			delta = new ChatMessage(0, MessageType.PRESENCE, text.toString());
+		}
+		sink.accept(delta);
+	}
+}
@@ -0,0 +1,243 @@
+package es.ubu.lsi.server;
+
+import java.util.function.ObjLongConsumer;
+
+import es.ubu.lsi.common.PooledBuffer;
+
+/**
+ * Ventana de retransmision de una sesion.
+ *
+ * Guarda, en un buffer circular de tamano fijo, las tramas enviadas con su
+ * numero de secuencia hasta que el cliente confirma su recepcion con un ACK
+ * acumulativo. Las tramas son los mismos buffers que se difunden al resto de
+ * clientes, la ventana no hace copias: toma una referencia de cada trama y la
+ * libera al confirmarse, al desbordarse o al descartar la ventana. Si la
+ * ventana se llena y el cliente lleva un tiempo sin confirmar nada, quien
+ * encola lo desconecta y conserva la ventana para que al volver a entrar reciba
+ * todo lo que no confirmo. Si sigue confirmando, solo que con retraso (por
+ * ejemplo porque sus ACK van detras de una rafaga de mensajes suyos), se saca
+ * de la ventana la trama pendiente mas antigua y se cuenta como desbordamiento.
+ * Con la conexion viva la trama se entrega igualmente, porque la cola de envio
+ * tiene su propia referencia; lo que se pierde es la posibilidad de reenviarla.
+ * Por eso la respuesta al login de la sesion que retoma la ventana lleva
+ * {@link #ackedSeq()}: si el cliente recibio menos, sabe cuantos mensajes
+ * perdio en lugar de saltarselos sin enterarse.
+ *
+ * Tambien mide el retraso de entrega: mensajes pendientes de confirmar y tiempo
+ * entre el envio de un mensaje y su confirmacion.
+ *
+ * @author Jose Maria Santos
+ */
+class RetransmitWindow {
+
+	/** Numero maximo de mensajes pendientes de confirmar. */
+	static final int CAPACITY = 1024;
+
+	/** Tramas pendientes, indexadas por secuencia modulo la capacidad. */
+	private final PooledBuffer[] frames = new PooledBuffer[CAPACITY];
+
+	/** Instante de envio de cada mensaje, en nanosegundos. */
+	private final long[] sentAt = new long[CAPACITY];
+
+	/** Ultima secuencia asignada. */
+	private long lastSeq;
+
+	/** Ultima secuencia confirmada. */
+	private long ackedSeq;
+
+	/** Mensajes descartados por ventana llena. */
+	private long overflows;
+
+	/** Instante del ultimo ACK que confirmo algo, o de la conexion, en nanosegundos. */
+	private long progressAt = System.nanoTime();
+
+	/** Tiempo hasta la confirmacion del ultimo ACK, en nanosegundos. */
+	private long lastAckNanos;
+
+	/** Maximo tiempo hasta una confirmacion, en nanosegundos. */
+	private long maxAckNanos;
+
+	/** Instante en que la sesion perdio la conexion, 0 si esta conectada. */
+	private long detachedAt;
+
+	/** Indica si se han liberado las tramas, la ventana ya no guarda ninguna. */
+	private boolean discarded;
+
+	/**
+	 * Anade una trama, tomando una referencia, y le asigna la siguiente
+	 * secuencia.
+	 *
+	 * @param frame trama enviada
+	 * @return secuencia asignada
+	 */
+	synchronized long append(PooledBuffer frame) {
+		lastSeq++;
+		if (discarded) {
+			ackedSeq = lastSeq; // la sesion ha terminado, no se retransmite
+			return lastSeq;
+		}
+		if (lastSeq - ackedSeq > CAPACITY) {
+			ackedSeq++;
+			frames[index(ackedSeq)].release();
+			frames[index(ackedSeq)] = null;
+			overflows++;
+		}
+		frames[index(lastSeq)] = frame.retain();
+		sentAt[index(lastSeq)] = System.nanoTime();
+		return lastSeq;
+	}
+
+	/**
+	 * Confirma todos los mensajes hasta una secuencia, incluida.
+	 *
+	 * @param seq secuencia confirmada
+	 */
+	synchronized void ack(long seq) {
+		if (seq <= ackedSeq || seq > lastSeq) {
+			return; // ACK repetido o de otra ventana
+		}
+		lastAckNanos = System.nanoTime() - sentAt[index(seq)];
+		maxAckNanos = Math.max(maxAckNanos, lastAckNanos);
+		for (long s = ackedSeq + 1; s <= seq; s++) {
+			frames[index(s)].release();
+			frames[index(s)] = null;
+		}
+		ackedSeq = seq;
+		progressAt = System.nanoTime();
+	}
+
+	/**
+	 * Libera todas las tramas pendientes. Se llama cuando la sesion termina sin
+	 * que nadie vaya a retomarla, o cuando su ventana desconectada caduca.
+	 */
+	synchronized void discard() {
+		if (!discarded) {
+			discarded = true;
+			for (long s = ackedSeq + 1; s <= lastSeq; s++) {
+				frames[index(s)].release();
+				frames[index(s)] = null;
+			}
+			ackedSeq = lastSeq;
+		}
+	}
+
+	/**
+	 * Recorre las tramas pendientes de confirmar, en orden.
+	 *
+	 * @param action accion a aplicar a cada trama con su secuencia
+	 */
+	synchronized void forEachUnacked(ObjLongConsumer<PooledBuffer> action) {
+		for (long s = ackedSeq + 1; s <= lastSeq; s++) {
+			action.accept(frames[index(s)], s);
+		}
+	}
+
+	/**
+	 * Devuelve el numero de mensajes pendientes de confirmar.
+	 *
+	 * @return mensajes pendientes
+	 */
+	synchronized long lag() {
+		return lastSeq - ackedSeq;
+	}
+
+	/**
+	 * Indica si la ventana esta llena, de modo que la siguiente trama desborda.
+	 *
+	 * @return true si esta llena
+	 */
+	synchronized boolean isFull() {
+		return !discarded && lastSeq - ackedSeq == CAPACITY;
+	}
+
+	/**
+	 * Devuelve el tiempo desde el ultimo ACK que confirmo algo, o desde la
+	 * conexion si aun no ha llegado ninguno.
+	 *
+	 * @return tiempo en milisegundos
+	 */
+	synchronized long ackIdleMillis() {
+		return (System.nanoTime() - progressAt) / 1000000;
+	}
+
+	/**
+	 * Devuelve la ultima secuencia asignada.
+	 *
+	 * @return ultima secuencia, 0 si no se ha enviado nada
+	 */
+	synchronized long lastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Devuelve la ultima secuencia que ya no se puede reenviar, confirmada por el
+	 * cliente o sacada de la ventana al desbordarse.
+	 *
+	 * @return ultima secuencia confirmada o desbordada
+	 */
+	synchronized long ackedSeq() {
+		return ackedSeq;
+	}
+
+	/**
+	 * Devuelve el tiempo hasta la confirmacion del ultimo ACK.
+	 *
+	 * @return tiempo en milisegundos
+	 */
+	synchronized long lastAckMillis() {
+		return lastAckNanos / 1000000;
+	}
+
+	/**
+	 * Devuelve el maximo tiempo hasta una confirmacion.
+	 *
+	 * @return tiempo en milisegundos
+	 */
+	synchronized long maxAckMillis() {
+		return maxAckNanos / 1000000;
+	}
+
+	/**
+	 * Devuelve los mensajes descartados por ventana llena.
+	 *
+	 * @return numero de desbordamientos
+	 */
+	synchronized long overflows() {
+		return overflows;
+	}
+
+	/**
+	 * Marca la ventana como desconectada.
+	 */
+	synchronized void detach() {
+		detachedAt = System.nanoTime();
+	}
+
+	/**
+	 * Indica si la ventana lleva desconectada mas del tiempo indicado.
+	 *
+	 * @param millis tiempo maximo de desconexion
+	 * @return true si ha caducado
+	 */
+	synchronized boolean expired(long millis) {
+		return detachedAt != 0 && System.nanoTime() - detachedAt > millis * 1000000;
+	}
+
+	/**
+	 * Marca la ventana como conectada de nuevo.
+	 */
+	synchronized void attach() {
+		detachedAt = 0;
+		progressAt = System.nanoTime();
+	}
+
+	/**
+	 * Posicion de una secuencia en el buffer circular.
+	 *
+	 * @param seq secuencia
+	 * @return indice en el buffer
+	 */
+	private static int index(long seq) {
+		return (int) (seq % CAPACITY);
+	}
+}
@@ -0,0 +1,173 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ficheros subidos por los clientes, a la espera de que los pidan.
+ *
+ * Al terminar una subida el servidor solo anuncia el fichero con su numero, y
+ * cada cliente que lo quiere lo pide con el comando {@code get} y recibe su
+ * propia transferencia. El fichero se ofrece durante {@link #EXPIRY_MILLIS} ms;
+ * las transferencias que siguen en curso al caducar conservan su referencia
+ * hasta terminar.
+ *
+ * El disco ocupado entre todos los ficheros vivos, incluidas las subidas en
+ * curso, no supera {@link #MAX_TOTAL_BYTES}, y cada usuario puede tener como
+ * mucho {@link #MAX_FILES_PER_USER} ficheros vivos a la vez.
+ *
+ * @author Jose Maria Santos
+ * @see FileSpool
+ */
+class SharedFiles {
+
+	/** Bytes entre todos los ficheros vivos. */
+	static final long MAX_TOTAL_BYTES = 256L * 1024 * 1024;
+
+	/** Ficheros vivos por usuario, subiendose u ofrecidos. */
+	static final int MAX_FILES_PER_USER = 4;
+
+	/** Tiempo que se ofrece un fichero, en milisegundos. */
+	static final long EXPIRY_MILLIS = 10 * 60 * 1000;
+
+	/** Ficheros ofrecidos por numero, en orden de llegada. */
+	private final Map<Integer, Offer> offers = new LinkedHashMap<Integer, Offer>();
+
+	/** Ficheros vivos por usuario. */
+	private final Map<String, Integer> filesPerUser = new HashMap<String, Integer>();
+
+	/** Bytes reservados entre todos los ficheros vivos. */
+	private long totalBytes;
+
+	/** Ultimo numero de fichero ofrecido. */
+	private int lastId;
+
+	/**
+	 * Crea el fichero temporal de una subida.
+	 *
+	 * @param owner usuario que sube el fichero
+	 * @param name  nombre del fichero
+	 * @return fichero con la referencia del que lo sube
+	 * @throws IOException si el usuario ya tiene demasiados ficheros o no se puede
+	 *                     crear el fichero temporal
+	 */
+	synchronized FileSpool open(String owner, String name) throws IOException {
+		int files = filesPerUser.getOrDefault(owner, 0);
+		if (files >= MAX_FILES_PER_USER) {
+			throw new IOException("already " + files + " files shared, wait until they expire");
+		}
+		FileSpool spool = new FileSpool(name, owner, this);
+		filesPerUser.put(owner, files + 1);
+		return spool;
+	}
+
+	/**
+	 * Ofrece un fichero ya subido.
+	 *
+	 * @param spool fichero completo, la oferta se queda con su referencia
+	 * @param now   instante actual, en milisegundos
+	 * @return numero con el que se pide el fichero
+	 */
+	synchronized int share(FileSpool spool, long now) {
+		offers.put(++lastId, new Offer(spool, now + EXPIRY_MILLIS));
+		return lastId;
+	}
+
+	/**
+	 * Busca un fichero ofrecido.
+	 *
+	 * @param fileId numero del fichero
+	 * @return fichero con una referencia nueva que debe liberar quien lo pide, o
+	 *         null si no existe o ha caducado
+	 */
+	synchronized FileSpool get(int fileId) {
+		Offer offer = offers.get(fileId);
+		return offer == null ? null : offer.spool.retain();
+	}
+
+	/**
+	 * Retira los ficheros caducados. Las ofertas estan en orden de llegada, asi
+	 * que se para en la primera que sigue vigente.
+	 *
+	 * @param now instante actual, en milisegundos
+	 */
+	synchronized void discardExpired(long now) {
+		for (Iterator<Offer> it = offers.values().iterator(); it.hasNext();) {
+			Offer offer = it.next();
+			if (offer.expiresAt > now) {
+				break;
+			}
+			it.remove();
+			offer.spool.release();
+		}
+	}
+
+	/**
+	 * Retira todos los ficheros ofrecidos, al apagar el servidor.
+	 */
+	synchronized void clear() {
+		for (Offer offer : offers.values()) {
+			offer.spool.release();
+		}
+		offers.clear();
+	}
+
+	/**
+	 * Reserva espacio para un trozo de una subida.
+	 *
+	 * @param bytes bytes del trozo
+	 * @throws IOException si no queda espacio
+	 */
+	synchronized void reserve(long bytes) throws IOException {
+		if (totalBytes + bytes > MAX_TOTAL_BYTES) {
+			throw new IOException("server file space is full, try again later");
+		}
+		totalBytes += bytes;
+	}
+
+	/**
+	 * Devuelve el espacio y el hueco del usuario de un fichero borrado.
+	 *
+	 * @param owner    usuario que subio el fichero
+	 * @param reserved bytes reservados por el fichero
+	 */
+	synchronized void deleted(String owner, long reserved) {
+		totalBytes -= reserved;
+		filesPerUser.computeIfPresent(owner, (user, files) -> files > 1 ? files - 1 : null);
+	}
+
+	/**
+	 * Devuelve los bytes reservados entre todos los ficheros vivos.
+	 *
+	 * @return bytes
+	 */
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Fichero ofrecido y su caducidad.
+	 */
+	private static final class Offer {
+
+		/** Fichero. */
+		final FileSpool spool;
+
+		/** Instante de caducidad, en milisegundos. */
+		final long expiresAt;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param spool     fichero
+		 * @param expiresAt instante de caducidad
+		 */
+		Offer(FileSpool spool, long expiresAt) {
+			this.spool = spool;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package es.ubu.lsi.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Canal de entrada que anota el instante del primer byte leido de cada
+ * mensaje, para medir la etapa de decodificacion. Solo se usa con la traza
+ * activada.
+ *
+ * @author Jose Maria Santos
+ * @see TraceStats
+ */
+class TimedInputStream extends FilterInputStream {
+
+	/** Instante del primer byte desde el ultimo reinicio, 0 si no ha llegado. */
+	private volatile long firstByteNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in canal de entrada
+	 */
+	TimedInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Devuelve el instante del primer byte y reinicia la marca para el siguiente
+	 * mensaje.
+	 *
+	 * @return instante en nanosegundos, 0 si el mensaje ya estaba en el buffer
+	 */
+	long takeFirstByteNanos() {
+		long nanos = firstByteNanos;
+		firstByteNanos = 0;
+		return nanos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		stamp(b >= 0 ? 1 : 0);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		stamp(n);
+		return n;
+	}
+
+	/**
+	 * Anota el instante si es el primer byte desde el ultimo reinicio.
+	 *
+	 * @param n bytes leidos
+	 */
+	private void stamp(int n) {
+		if (n > 0 && firstByteNanos == 0) {
+			firstByteNanos = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package es.ubu.lsi.server;
+
+import es.ubu.lsi.common.LatencyHistogram;
+import es.ubu.lsi.common.Trace;
+
+/**
+ * Histogramas de latencia del servidor, por etapa, para los mensajes con traza.
+ *
+ * <ul>
+ * <li>decode: desde el primer byte leido hasta tener el mensaje.</li>
+ * <li>dispatch: desde la recepcion hasta el inicio de la difusion.</li>
+ * <li>fanout: encolado del mensaje a todos los destinatarios.</li>
+ * <li>queue: espera en la cola del hilo escritor de cada destinatario.</li>
+ * <li>write: escritura en el socket de cada destinatario.</li>
+ * </ul>
+ *
+ * @author Jose Maria Santos
+ * @see Trace
+ */
+class TraceStats {
+
+	/** Decodificacion. */
+	final LatencyHistogram decode = new LatencyHistogram("decode");
+
+	/** Despacho de comandos. */
+	final LatencyHistogram dispatch = new LatencyHistogram("dispatch");
+
+	/** Difusion. */
+	final LatencyHistogram fanout = new LatencyHistogram("fanout");
+
+	/** Espera en la cola de escritura. */
+	final LatencyHistogram queue = new LatencyHistogram("queue");
+
+	/** Escritura en el socket. */
+	final LatencyHistogram write = new LatencyHistogram("write");
+
+	/**
+	 * Muestra por pantalla los histogramas.
+	 */
+	void print() {
+		System.out.println("Latency by stage:");
+		System.out.println(decode);
+		System.out.println(dispatch);
+		System.out.println(fanout);
+		System.out.println(queue);
+		System.out.println(write);
+	}
+}
@@ -0,0 +1,183 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.Connection;
+import es.ubu.lsi.common.ConnectionAcceptor;
+import es.ubu.lsi.common.FrameInput;
+import es.ubu.lsi.common.FrameOutput;
+import es.ubu.lsi.common.LoopbackTransport;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Pruebas de la sesion asincrona contra un servidor minimo que acepta el login
+ * y descarta todo lo que recibe.
+ *
+ * @author Jose Maria Santos
+ */
+public class ChatSessionTest {
+
+	/** Puerto del servidor. */
+	private static final int PORT = 1500;
+
+	/** Transporte de la prueba. */
+	private final LoopbackTransport transport = new LoopbackTransport();
+
+	/** Grupo de la sesion. */
+	private final ChatSessionGroup group = new ChatSessionGroup(2, transport);
+
+	/** Extremo del servidor. */
+	private ConnectionAcceptor acceptor;
+
+	/** Sesion conectada. */
+	private ChatSession session;
+
+	/** Salida del servidor hacia la sesion. */
+	private FrameOutput output;
+
+	/** Error que lanza el receptor al recibir un mensaje, null para ninguno. */
+	private volatile RuntimeException failure;
+
+	/** Causa del cierre de la sesion. */
+	private volatile Throwable cause;
+
+	/** Se abre al cerrarse la sesion. */
+	private final CountDownLatch disconnected = new CountDownLatch(1);
+
+	/**
+	 * Conecta una sesion y acepta su login.
+	 *
+	 * @throws Exception si falla el login
+	 */
+	@Before
+	public void setUp() throws Exception {
+		acceptor = transport.listen(PORT);
+		session = group.newSession("localhost", PORT, "ana", new ChatMessageListener() {
+
+			@Override
+			public void onMessage(ChatSession session, ChatMessage msg) {
+				if (failure != null) {
+					throw failure;
+				}
+			}
+
+			@Override
+			public void onMessagesLost(ChatSession session, long count) {
+			}
+
+			@Override
+			public void onDisconnect(ChatSession session, Throwable cause) {
+				ChatSessionTest.this.cause = cause;
+				disconnected.countDown();
+			}
+		});
+		CompletableFuture<ChatMessage> login = session.connect();
+		Connection connection = acceptor.accept();
+		FrameInput input = new FrameInput(connection.getInputStream());
+		input.readMessage();
+		output = new FrameOutput(connection.getOutputStream());
+		output.writeLong(0);
+		output.writeMessage(new ChatMessage(7, MessageType.MESSAGE, "Welcome"));
+		output.flush();
+		Thread sink = new Thread(() -> {
+			try {
+				while (true) {
+					input.readMessage();
+				}
+			} catch (IOException e) {
+				// la sesion ha cerrado la conexion
+			}
+		});
+		sink.setDaemon(true);
+		sink.start();
+		login.get(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Cierra el grupo y el servidor.
+	 *
+	 * @throws IOException si falla el cierre del servidor
+	 */
+	@After
+	public void tearDown() throws IOException {
+		group.close();
+		acceptor.close();
+	}
+
+	/**
+	 * Un envio sobre una sesion cerrada falla enseguida.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void sendAfterDisconnectFails() throws Exception {
+		session.disconnect();
+		try {
+			session.send(new ChatMessage(7, MessageType.MESSAGE, "tarde")).get(10, TimeUnit.SECONDS);
+			fail("Send on a closed session succeeded");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	/**
+	 * Un error del receptor cierra la sesion y se notifica como causa del cierre.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void listenerFailureClosesSession() throws Exception {
+		failure = new IllegalStateException("fallo del receptor");
+		output.writeLong(1);
+		output.writeMessage(new ChatMessage(7, MessageType.MESSAGE, "hola"));
+		output.flush();
+		assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+		assertSame(failure, cause);
+		assertTrue(session.isClosed());
+	}
+
+	/**
+	 * Los envios que compiten con el cierre terminan todos, escritos o fallidos,
+	 * ninguno se queda en la cola sin completar.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void sendsRacingWithDisconnectAllComplete() throws Exception {
+		List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+		Thread sender = new Thread(() -> {
+			for (int i = 0; i < 20000; i++) {
+				futures.add(session.send(new ChatMessage(7, MessageType.MESSAGE, "m" + i)));
+			}
+		});
+		sender.start();
+		while (futures.size() < 1000 && sender.isAlive()) {
+			Thread.sleep(1);
+		}
+		session.disconnect();
+		sender.join();
+		for (CompletableFuture<Void> future : futures) {
+			try {
+				future.get(10, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+}
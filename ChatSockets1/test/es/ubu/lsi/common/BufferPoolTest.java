@@ -0,0 +1,113 @@
+package es.ubu.lsi.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests of the buffer pool and the reference counting of its buffers.
+ *
+ * @author Jose Maria Santos
+ */
+public class BufferPoolTest {
+
+	/** Longest wait for the garbage collector, in milliseconds. */
+	private static final long GC_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * A released buffer is reused for the next request of its size class.
+	 */
+	@Test
+	public void releasedBufferIsReused() {
+		BufferPool pool = new BufferPool(false);
+		PooledBuffer first = pool.acquire(300);
+		assertEquals(300, first.buffer().limit());
+		assertEquals(1, pool.getInUse());
+		assertTrue(first.release());
+
+		PooledBuffer second = pool.acquire(400);
+		assertSame(first, second);
+		assertEquals(400, second.buffer().limit());
+		assertEquals(1, pool.getAllocations());
+		second.release();
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * A buffer goes back to the pool only with its last reference, and releasing
+	 * or retaining it afterwards fails.
+	 */
+	@Test
+	public void lastReleaseRecyclesAndExtraReleaseFails() {
+		BufferPool pool = new BufferPool(false);
+		PooledBuffer pooled = pool.acquire(64);
+		pooled.retain();
+		assertFalse(pooled.release());
+		assertEquals(1, pool.getInUse());
+		assertTrue(pooled.release());
+		assertEquals(0, pool.getInUse());
+
+		try {
+			pooled.release();
+			fail("Released a buffer already in the pool");
+		} catch (IllegalStateException e) {
+			assertEquals(0, pooled.refCount());
+		}
+		try {
+			pooled.retain();
+			fail("Retained a buffer already in the pool");
+		} catch (IllegalStateException e) {
+			assertEquals(0, pooled.refCount());
+		}
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Requests larger than the largest class get a buffer of their own that is
+	 * not kept on release.
+	 */
+	@Test
+	public void oversizeBufferIsNotPooled() {
+		BufferPool pool = new BufferPool(false);
+		pool.acquire(BufferPool.MAX_CLASS_SIZE + 1).release();
+		assertEquals(1, pool.getOversize());
+		assertEquals(0, pool.getFreeBytes());
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * With leak detection, a buffer dropped without being released is reported
+	 * and no longer counted as in use.
+	 *
+	 * @throws InterruptedException if the wait is interrupted
+	 */
+	@Test
+	public void droppedBufferIsReportedAsLeak() throws InterruptedException {
+		BufferPool pool = new BufferPool(true);
+		pool.acquire(64).release();
+		acquireAndDrop(pool);
+		assertEquals(1, pool.getInUse());
+
+		long deadline = System.currentTimeMillis() + GC_TIMEOUT_MILLIS;
+		while (pool.getLeaks() == 0 && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+			pool.reportLeaks();
+		}
+		assertEquals(1, pool.getLeaks());
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Acquires a buffer and loses it without releasing it.
+	 *
+	 * @param pool pool
+	 */
+	private static void acquireAndDrop(BufferPool pool) {
+		pool.acquire(128);
+	}
+}
@@ -0,0 +1,104 @@
+package es.ubu.lsi.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests of the frame reader and writer.
+ *
+ * @author Jose Maria Santos
+ */
+public class FrameStreamTest {
+
+	/** Data larger than both initial buffers. */
+	private static final byte[] LARGE = new byte[4 * FrameOutput.BATCH_SIZE];
+
+	/**
+	 * Messages come back as they were written, with their sequence numbers.
+	 *
+	 * @throws IOException if the codec fails
+	 */
+	@Test
+	public void messagesRoundTrip() throws IOException {
+		ChatMessage traced = new ChatMessage(3, MessageType.MESSAGE, "hola");
+		traced.setTrace(new long[] { 1, 2, 3 });
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameOutput output = new FrameOutput(bytes);
+		output.writeLong(41);
+		output.writeMessage(traced);
+		output.writeLong(42);
+		output.writeMessage(new ChatMessage(4, MessageType.FILE_CHUNK, "file.txt", new byte[] { 1, 2, 3 }));
+		output.flush();
+
+		FrameInput input = new FrameInput(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(41, input.readLong());
+		ChatMessage msg = input.readMessage();
+		assertEquals(3, msg.getId());
+		assertEquals(MessageType.MESSAGE, msg.getType());
+		assertEquals("hola", msg.getMessage());
+		assertNull(msg.getData());
+		assertArrayEquals(new long[] { 1, 2, 3 }, msg.getTrace());
+		assertEquals(42, input.readLong());
+		msg = input.readMessage();
+		assertEquals(MessageType.FILE_CHUNK, msg.getType());
+		assertEquals("file.txt", msg.getMessage());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, msg.getData());
+	}
+
+	/**
+	 * The writer grows its batch for a large message and shrinks it on flush.
+	 *
+	 * @throws IOException if the codec fails
+	 */
+	@Test
+	public void outputShrinksOnFlush() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameOutput output = new FrameOutput(bytes);
+		output.writeMessage(new ChatMessage(1, MessageType.FILE_CHUNK, "big", LARGE));
+		assertTrue(output.capacity() > FrameOutput.BATCH_SIZE);
+		output.flush();
+		assertEquals(FrameOutput.BATCH_SIZE, output.capacity());
+
+		output.writeMessage(new ChatMessage(1, MessageType.MESSAGE, "small"));
+		output.flush();
+		FrameInput input = new FrameInput(new ByteArrayInputStream(bytes.toByteArray()));
+		assertArrayEquals(LARGE, input.readMessage().getData());
+		assertEquals("small", input.readMessage().getMessage());
+	}
+
+	/**
+	 * The reader grows its buffer for a large frame and shrinks it when it has
+	 * to wait for more bytes.
+	 *
+	 * @throws IOException if the codec fails
+	 */
+	@Test
+	public void inputShrinksWhenIdle() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameOutput output = new FrameOutput(bytes);
+		output.writeMessage(new ChatMessage(1, MessageType.FILE_CHUNK, "big", LARGE));
+		output.writeMessage(new ChatMessage(1, MessageType.MESSAGE, "small"));
+		output.flush();
+
+		FrameInput input = new FrameInput(new ByteArrayInputStream(bytes.toByteArray()));
+		assertArrayEquals(LARGE, input.readMessage().getData());
+		assertTrue(input.capacity() > FrameInput.BUFFER_SIZE);
+		assertEquals("small", input.readMessage().getMessage());
+		try {
+			input.readMessage();
+			fail("Read past the end of the stream");
+		} catch (EOFException e) {
+			assertEquals(FrameInput.BUFFER_SIZE, input.capacity());
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package es.ubu.lsi.server;
+
+import static es.ubu.lsi.server.LoopbackChat.await;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.ubu.lsi.client.FileDownloads;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.FrameCodec;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.PooledBuffer;
+import es.ubu.lsi.server.LoopbackChat.Client;
+
+/**
+ * Pruebas del servidor con clientes en la misma JVM: login, difusion,
+ * ficheros, sesiones retomadas y logout.
+ *
+ * @author Jose Maria Santos
+ */
+public class ChatServerLoopbackTest {
+
+	/** Servidor y clientes de la prueba. */
+	private LoopbackChat chat;
+
+	/**
+	 * Arranca el servidor.
+	 */
+	@Before
+	public void setUp() {
+		chat = new LoopbackChat();
+	}
+
+	/**
+	 * Cierra los clientes y el servidor.
+	 */
+	@After
+	public void tearDown() {
+		chat.close();
+	}
+
+	/**
+	 * Un mensaje llega a todos los clientes, incluido el emisor, con su username.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void broadcastReachesEveryClient() throws Exception {
+		Client ana = chat.connect("ana");
+		Client bob = chat.connect("bob");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+
+		ana.session.send(MessageType.MESSAGE, "hola").get();
+		bob.next("ana: hola");
+		ana.next("ana: hola");
+	}
+
+	/**
+	 * Un segundo login con un username en uso se rechaza y el primero sigue
+	 * conectado.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void duplicateUsernameIsRefused() throws Exception {
+		Client ana = chat.connect("ana");
+		await("ana logged in", () -> chat.server.clientsMap.containsKey("ana"));
+		try {
+			chat.connect("ana");
+			fail("Duplicate login accepted");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("already exists"));
+		}
+		ana.session.send(MessageType.MESSAGE, "sigo").get();
+		ana.next("ana: sigo");
+	}
+
+	/**
+	 * Al retomar una sesion caida el servidor reenvia lo no confirmado, el cliente
+	 * descarta lo que ya tenia y la secuencia continua.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void resumeResendsUnacknowledgedMessages() throws Exception {
+		Client tx = chat.connect("tx");
+		Client rx = chat.connect("rx");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+		for (int i = 0; i < 10; i++) {
+			tx.session.send(MessageType.MESSAGE, "m" + i);
+		}
+		long lost = 0;
+		for (int i = 0; i < 10; i++) {
+			ChatMessage msg = rx.next("tx: m" + i);
+			if (i == 4) {
+				lost = rx.seqOf(msg);
+			}
+		}
+		// Se cae antes del ACK diferido, como si lo posterior a m4 se hubiera perdido.
+		// Puede haber avisos de presencia entre medias, tambien con secuencia.
+		long lastSeq = rx.session.getLastSeq();
+		rx.session.disconnect();
+		await("rx removed", () -> !chat.server.clientsMap.containsKey("rx"));
+		synchronized (chat.server.detachedWindows) {
+			assertTrue(chat.server.detachedWindows.containsKey("rx"));
+		}
+
+		Client resumed = chat.resume("rx", lost);
+		for (int i = 5; i < 10; i++) {
+			resumed.next("tx: m" + i);
+		}
+		tx.session.send(MessageType.MESSAGE, "m10").get();
+		resumed.next("tx: m10");
+		assertTrue(resumed.session.getLastSeq() > lastSeq);
+		assertBuffersReleased(tx, resumed);
+	}
+
+	/**
+	 * Si el servidor ya no guarda la sesion anterior, porque se confirmo todo, la
+	 * numeracion empieza de nuevo y el cliente no descarta los mensajes nuevos.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void resumeWithoutDetachedWindowStartsOver() throws Exception {
+		Client tx = chat.connect("tx");
+		Client rx = chat.connect("rx");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+		for (int i = 0; i < 5; i++) {
+			tx.session.send(MessageType.MESSAGE, "m" + i);
+			rx.next("tx: m" + i);
+		}
+		await("rx acknowledged", () -> chat.server.clientsMap.get("rx").writer.window().lag() == 0);
+		long lastSeq = rx.session.getLastSeq();
+		rx.session.disconnect();
+		await("rx removed", () -> !chat.server.clientsMap.containsKey("rx"));
+
+		Client resumed = chat.resume("rx", lastSeq);
+		tx.session.send(MessageType.MESSAGE, "m5").get();
+		resumed.next("tx: m5");
+		assertTrue(resumed.session.getLastSeq() < lastSeq);
+		assertBuffersReleased(tx, resumed);
+	}
+
+	/**
+	 * Si la ventana de la sesion caida se desbordo, el cliente que la retoma
+	 * recibe cuantos mensajes ya no se le pueden reenviar, y despues el resto.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void resumeAfterOverflowReportsLostMessages() throws Exception {
+		Client tx = chat.connect("tx");
+		Client rx = chat.connect("rx");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+		tx.session.send(MessageType.MESSAGE, "m0");
+		rx.next("tx: m0");
+		long lastSeq = rx.session.getLastSeq();
+		rx.session.disconnect();
+		await("rx removed", () -> !chat.server.clientsMap.containsKey("rx"));
+		RetransmitWindow window;
+		synchronized (chat.server.detachedWindows) {
+			window = chat.server.detachedWindows.get("rx");
+		}
+		// Mensajes que no llego a recibir, mas de los que caben en la ventana
+		PooledBuffer frame = chat.server.encode(new ChatMessage(0, MessageType.MESSAGE, "tx: perdido"));
+		for (int i = 0; i < RetransmitWindow.CAPACITY + 5; i++) {
+			window.append(frame);
+		}
+		frame.release();
+		long lost = window.ackedSeq() - lastSeq;
+		assertTrue(lost >= 5);
+
+		Client resumed = chat.resume("rx", lastSeq);
+		await("lost messages reported", () -> resumed.lost == lost);
+		assertEquals(lastSeq + lost + 1, resumed.seqOf(resumed.next("tx: perdido")));
+		tx.session.send(MessageType.MESSAGE, "m1").get();
+		resumed.expect("tx: m1");
+		assertBuffersReleased(tx, resumed);
+	}
+
+	/**
+	 * La purga periodica descarta la ventana de una sesion caida que no se
+	 * retoma, y sus tramas vuelven al pool.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void expiredDetachedWindowIsReleased() throws Exception {
+		Client tx = chat.connect("tx");
+		Client rx = chat.connect("rx");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+		for (int i = 0; i < 5; i++) {
+			tx.session.send(MessageType.MESSAGE, "m" + i);
+			rx.next("tx: m" + i);
+		}
+		// Se cae antes del ACK diferido
+		rx.session.disconnect();
+		await("rx removed", () -> !chat.server.clientsMap.containsKey("rx"));
+		synchronized (chat.server.detachedWindows) {
+			assertTrue(chat.server.detachedWindows.containsKey("rx"));
+		}
+
+		await("window discarded", () -> {
+			chat.server.discardExpiredWindows(0);
+			synchronized (chat.server.detachedWindows) {
+				return chat.server.detachedWindows.isEmpty();
+			}
+		});
+		assertBuffersReleased(tx);
+	}
+
+	/**
+	 * Una traza con un numero de campos inesperado se descarta: el mensaje se
+	 * difunde sin traza y el emisor sigue conectado.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void malformedTraceIsDropped() throws Exception {
+		Client ana = chat.connect("ana");
+		Client bob = chat.connect("bob");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+
+		ChatMessage msg = new ChatMessage(ana.session.getId(), MessageType.MESSAGE, "traza");
+		msg.setTrace(new long[1]);
+		ana.session.send(msg).get();
+		assertNull(bob.next("ana: traza").getTrace());
+
+		ana.session.send(MessageType.MESSAGE, "sigo").get();
+		bob.next("ana: sigo");
+	}
+
+	/**
+	 * La respuesta a una busqueda que encuentra mensajes muy largos se recorta
+	 * para que quepa en una trama, y el cliente sigue conectado.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void searchReplyFitsInFrame() throws Exception {
+		Client ana = chat.connect("ana");
+		Client bob = chat.connect("bob");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+
+		char[] filler = new char[FrameCodec.MAX_FRAME_LENGTH / 7];
+		Arrays.fill(filler, '\u20ac'); // 3 bytes en UTF-8, casi media trama
+		String large = "clave " + new String(filler);
+		for (int i = 0; i < 3; i++) {
+			ana.session.send(MessageType.MESSAGE, large).get();
+			bob.expect("ana: clave");
+		}
+
+		bob.session.send(MessageType.MESSAGE, "search clave").get();
+		ChatMessage reply = bob.next("Search results for 'clave': 3");
+		assertTrue(FrameCodec.encodedLength(reply) <= FrameCodec.MAX_FRAME_LENGTH);
+		for (String line : reply.getMessage().split("\n")) {
+			assertTrue(line.length() <= ChatServerImpl.MAX_SEARCH_LINE);
+		}
+		bob.session.send(MessageType.MESSAGE, "sigo").get();
+		bob.next("bob: sigo");
+	}
+
+	/**
+	 * Un fichero subido solo se anuncia; se transfiere a quien lo pide y solo a
+	 * el.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void sharedFileIsSentOnRequest() throws Exception {
+		Client ana = chat.connect("ana");
+		Client bob = chat.connect("bob");
+		Client eva = chat.connect("eva");
+		await("all logged in", () -> chat.server.clientsMap.size() == 3);
+		byte[] content = new byte[3 * FileTransfer.CHUNK_SIZE + 10];
+		new Random(1).nextBytes(content);
+		Path file = Files.createTempFile("shared", ".bin");
+		Path downloads = Files.createTempDirectory("downloads");
+		try {
+			Files.write(file, content);
+			ana.session.sendFile(file).get();
+			String offer = bob.expect("download it with: get ").getMessage();
+			int fileId = Integer.parseInt(offer.substring(offer.lastIndexOf(' ') + 1));
+
+			bob.session.requestFile(fileId).get();
+			FileDownloads received = new FileDownloads(downloads);
+			Path path = null;
+			while (path == null) {
+				ChatMessage msg = bob.fileMessages.poll(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				if (msg == null) {
+					fail("bob did not receive the file");
+				}
+				path = received.handle(msg);
+			}
+			assertArrayEquals(content, Files.readAllBytes(path));
+			Files.delete(path);
+
+			// eva no lo ha pedido: solo le llegan los mensajes de chat
+			eva.expect("download it with: get " + fileId);
+			eva.session.send(MessageType.MESSAGE, "fin").get();
+			eva.expect("eva: fin");
+			assertTrue(eva.fileMessages.isEmpty());
+			assertTrue(ana.fileMessages.isEmpty());
+
+			bob.session.requestFile(fileId + 1).get();
+			bob.expect("File " + (fileId + 1) + " is not available");
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(downloads);
+		}
+	}
+
+	/**
+	 * Un usuario no puede tener mas de {@link SharedFiles#MAX_FILES_PER_USER}
+	 * ficheros a la vez, y el espacio se recupera al caducar.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void sharedFilesPerUserAreCapped() throws Exception {
+		Client ana = chat.connect("ana");
+		Path file = Files.createTempFile("shared", ".txt");
+		try {
+			Files.write(file, new byte[] { 1, 2, 3 });
+			for (int i = 0; i < SharedFiles.MAX_FILES_PER_USER; i++) {
+				ana.session.sendFile(file).get();
+				ana.expect("download it with: get ");
+			}
+			ana.session.sendFile(file).get();
+			ana.expect("rejected");
+			assertEquals(3 * SharedFiles.MAX_FILES_PER_USER, chat.server.sharedFiles.getTotalBytes());
+
+			chat.server.sharedFiles.discardExpired(Long.MAX_VALUE);
+			assertEquals(0, chat.server.sharedFiles.getTotalBytes());
+			ana.session.sendFile(file).get();
+			ana.expect("download it with: get ");
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * El logout elimina al cliente del servidor y cierra su sesion sin afectar al
+	 * resto.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void logoutRemovesClient() throws Exception {
+		Client ana = chat.connect("ana");
+		Client bob = chat.connect("bob");
+		await("both logged in", () -> chat.server.clientsMap.size() == 2);
+
+		ana.session.logout().get();
+		assertTrue(ana.disconnected.await(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		await("ana removed", () -> !chat.server.clientsMap.containsKey("ana"));
+		synchronized (chat.server.detachedWindows) {
+			assertFalse(chat.server.detachedWindows.containsKey("ana"));
+		}
+
+		bob.session.send(MessageType.MESSAGE, "sigo").get();
+		bob.next("bob: sigo");
+		assertBuffersReleased(bob);
+	}
+
+	/**
+	 * Hace logout de los clientes y comprueba que el servidor ha devuelto todas
+	 * las tramas al pool: las colas, las ventanas y las adoptadas al retomar.
+	 *
+	 * @param clients clientes conectados
+	 * @throws Exception si falla el logout
+	 */
+	private void assertBuffersReleased(Client... clients) throws Exception {
+		for (Client client : clients) {
+			client.session.logout().get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		await("all clients removed", () -> chat.server.clientsMap.isEmpty());
+		await("all buffers released", () -> chat.server.buffers.getInUse() == 0);
+	}
+}
@@ -0,0 +1,225 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.BufferPool;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.FrameCodec;
+import es.ubu.lsi.common.FrameInput;
+import es.ubu.lsi.common.FrameOutput;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.PooledBuffer;
+
+/**
+ * Pruebas del hilo escritor: referencias de las tramas y clientes que no leen.
+ *
+ * @author Jose Maria Santos
+ */
+public class ClientWriterTest {
+
+	/** Pool de las tramas. */
+	private final BufferPool pool = new BufferPool(false);
+
+	/** Canal que no avanza hasta que se cierra. */
+	private final StalledStream stream = new StalledStream();
+
+	/** Fallos de escritura notificados. */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/** Escritor de la prueba. */
+	private final ClientWriter writer = new ClientWriter("ClientWriter-test", new FrameOutput(stream), stream,
+			new TraceStats(), failures::incrementAndGet);
+
+	/**
+	 * La cola y la ventana toman cada una su referencia de la trama; el escritor
+	 * libera la de la cola al escribirla y el ACK la de la ventana.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void queueAndWindowTakeTheirOwnReferences() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ClientWriter writer = newWriter(bytes);
+		PooledBuffer frame = encode("m");
+		writer.enqueue(frame);
+		writer.enqueue(frame);
+		assertEquals(1 + 2 * 2, frame.refCount());
+
+		writer.close();
+		writer.start();
+		writer.join(10000);
+		assertEquals(1 + 2, frame.refCount());
+		writer.window().ack(1);
+		assertEquals(1 + 1, frame.refCount());
+		writer.window().ack(2);
+		assertEquals(1, frame.refCount());
+
+		frame.release();
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Al adoptar la ventana de una sesion anterior se reenvian sus tramas sin
+	 * confirmar con su secuencia original, y la cola toma una referencia de cada
+	 * una que devuelve al escribirla.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void adoptedWindowIsResent() throws Exception {
+		PooledBuffer frame = encode("m");
+		RetransmitWindow previous = new RetransmitWindow();
+		for (int i = 0; i < 3; i++) {
+			previous.append(frame);
+		}
+		previous.ack(1);
+		previous.detach();
+		assertEquals(1 + 2, frame.refCount());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ClientWriter writer = newWriter(bytes);
+		writer.adopt(previous);
+		assertEquals(1 + 2 * 2, frame.refCount());
+		writer.close();
+		writer.start();
+		writer.join(10000);
+		assertEquals(1 + 2, frame.refCount());
+
+		FrameInput input = new FrameInput(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(2, input.readLong());
+		assertEquals("m", input.readMessage().getMessage());
+		assertEquals(3, input.readLong());
+		assertEquals("m", input.readMessage().getMessage());
+
+		assertEquals(previous, writer.window());
+		writer.window().discard();
+		frame.release();
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Un cliente que no lee acaba desconectado en lugar de acumular mensajes sin
+	 * limite, y todas las referencias de la trama se devuelven.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void slowClientIsDisconnected() throws Exception {
+		writer.start();
+		PooledBuffer frame = encode("m");
+		int sent = 0;
+		while (!stream.isClosed() && sent < 100000) {
+			writer.enqueue(frame);
+			sent++;
+		}
+		assertTrue("Slow client was not disconnected", stream.isClosed());
+		writer.join(10000);
+		assertEquals(1, failures.get());
+		assertEquals(0, writer.queued());
+
+		writer.window().discard();
+		frame.release();
+		assertEquals(0, frame.refCount());
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Las transferencias que no caben se descartan, liberando su referencia del
+	 * fichero.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void transfersAreCapped() throws Exception {
+		FileSpool spool = new SharedFiles().open("ana", "file.txt");
+		spool.append(new byte[] { 1, 2, 3 });
+		for (int i = 0; i <= ClientWriter.MAX_TRANSFERS; i++) {
+			writer.enqueue(new FileTransfer(spool, i, pool));
+		}
+		assertEquals(1 + ClientWriter.MAX_TRANSFERS, spool.refCount());
+
+		writer.close();
+		writer.start();
+		writer.join(10000);
+		assertEquals(1, spool.refCount());
+		spool.release();
+	}
+
+	/**
+	 * Crea un escritor sobre un canal que guarda todo lo escrito.
+	 *
+	 * @param bytes canal
+	 * @return escritor sin arrancar
+	 */
+	private ClientWriter newWriter(ByteArrayOutputStream bytes) {
+		return new ClientWriter("ClientWriter-test", new FrameOutput(bytes), bytes, new TraceStats(),
+				failures::incrementAndGet);
+	}
+
+	/**
+	 * Codifica un mensaje en una trama del pool.
+	 *
+	 * @param text texto
+	 * @return trama con una referencia
+	 */
+	private PooledBuffer encode(String text) {
+		ChatMessage msg = new ChatMessage(1, MessageType.MESSAGE, text);
+		PooledBuffer frame = pool.acquire(FrameCodec.encodedLength(msg));
+		FrameCodec.encode(msg, frame.buffer());
+		frame.buffer().flip();
+		return frame;
+	}
+
+	/**
+	 * Canal de un cliente que no lee: toda escritura se bloquea hasta que se
+	 * cierra y entonces falla.
+	 */
+	static class StalledStream extends OutputStream {
+
+		/** Indica si se ha cerrado. */
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			try {
+				while (!closed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			throw new IOException("Stream closed");
+		}
+
+		@Override
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Indica si se ha cerrado.
+		 *
+		 * @return true si esta cerrado
+		 */
+		synchronized boolean isClosed() {
+			return closed;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Mide el filtro de moderacion con una lista grande de palabras, comparando el
+ * automata con una expresion regular por palabra.
+ *
+ * No es una prueba unitaria. Con las pruebas compiladas como indica el README
+ * se ejecuta con:
+ *
+ * <pre>
+ * java -cp "target/classes:target/test-classes:target/test-lib/*" es.ubu.lsi.server.KeywordAutomatonBenchmark 12000
+ * </pre>
+ *
+ * @author Jose Maria Santos
+ */
+public class KeywordAutomatonBenchmark {
+
+	/** Palabras por defecto. */
+	private static final int WORDS = 12000;
+
+	/** Mensajes distintos revisados. */
+	private static final int MESSAGES = 1000;
+
+	/** Longitud de cada mensaje. */
+	private static final int MESSAGE_LENGTH = 120;
+
+	/** Mensajes revisados en cada medida con el automata. */
+	private static final int SCANS = 200000;
+
+	/** Mensajes revisados con las expresiones regulares, mucho mas lentas. */
+	private static final int REGEX_SCANS = 200;
+
+	/**
+	 * Ejecuta la medida.
+	 *
+	 * @param args numero de palabras, opcional
+	 */
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : WORDS;
+		Random random = new Random(42);
+		List<String> words = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			words.add(randomWord(random, 4 + random.nextInt(8), 0));
+		}
+		String[] messages = new String[MESSAGES];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = randomWord(random, MESSAGE_LENGTH, 5);
+		}
+
+		long start = System.nanoTime();
+		KeywordAutomaton automaton = new KeywordAutomaton(words, new boolean[words.size()]);
+		System.out.printf("%d words compiled in %.1f ms%n", words.size(), (System.nanoTime() - start) / 1e6);
+
+		// El automata encuentra lo mismo que buscar cada palabra por separado
+		for (String message : messages) {
+			boolean found = false;
+			for (String word : words) {
+				if (message.contains(word)) {
+					found = true;
+					break;
+				}
+			}
+			if (found != (automaton.scan(message) != null)) {
+				throw new AssertionError("Automaton and naive search disagree on " + message);
+			}
+		}
+
+		long hits = 0;
+		for (int round = 0; round < 3; round++) {
+			start = System.nanoTime();
+			for (int i = 0; i < SCANS; i++) {
+				if (automaton.scan(messages[i % messages.length]) != null) {
+					hits++;
+				}
+			}
+			System.out.printf("automaton: %.2f us/message%n", (System.nanoTime() - start) / 1e3 / SCANS);
+		}
+
+		Pattern[] patterns = new Pattern[words.size()];
+		for (int i = 0; i < patterns.length; i++) {
+			patterns[i] = Pattern.compile(Pattern.quote(words.get(i)), Pattern.CASE_INSENSITIVE);
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < REGEX_SCANS; i++) {
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(messages[i % messages.length]).find()) {
+					hits++;
+				}
+			}
+		}
+		System.out.printf("regex per word: %.2f us/message (%d hits)%n",
+				(System.nanoTime() - start) / 1e3 / REGEX_SCANS, hits);
+	}
+
+	/**
+	 * Genera una palabra aleatoria en minusculas.
+	 *
+	 * @param random generador
+	 * @param length longitud
+	 * @param spaces uno de cada tantos caracteres es un espacio, 0 para ninguno
+	 * @return palabra
+	 */
+	private static String randomWord(Random random, int length, int spaces) {
+		StringBuilder word = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			word.append(spaces > 0 && random.nextInt(spaces) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+		}
+		return word.toString();
+	}
+}
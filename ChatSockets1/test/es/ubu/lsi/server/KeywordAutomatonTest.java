@@ -0,0 +1,66 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Pruebas del automata de palabras de la moderacion.
+ *
+ * @author Jose Maria Santos
+ */
+public class KeywordAutomatonTest {
+
+	/**
+	 * Las palabras se enmascaran sin distinguir mayusculas, y las que bloquean
+	 * bloquean el mensaje.
+	 */
+	@Test
+	public void masksAndBlocks() {
+		KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("tonto", "spam"),
+				new boolean[] { false, true });
+
+		KeywordAutomaton.Match masked = automaton.scan("eres TONTO, vale");
+		assertFalse(masked.isBlocked());
+		assertEquals("eres *****, vale", masked.apply("eres TONTO, vale"));
+
+		assertTrue(automaton.scan("compra spam aqui").isBlocked());
+		assertNull(automaton.scan("hola a todos"));
+	}
+
+	/**
+	 * Las palabras que se solapan o son sufijo de otra se encuentran todas.
+	 */
+	@Test
+	public void overlappingWordsAreFound() {
+		KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList("he", "she", "his", "hers"),
+				new boolean[4]);
+
+		assertEquals("u*****", automaton.scan("ushers").apply("ushers"));
+		assertEquals("a***e", automaton.scan("ahise").apply("ahise"));
+	}
+
+	/**
+	 * Una lista cuya tabla no cabe se rechaza antes de reservar la memoria.
+	 */
+	@Test
+	public void tooLargeTableIsRejected() {
+		StringBuilder word = new StringBuilder();
+		for (char c = 0x100; word.length() < 5000; c++) {
+			word.append(c);
+		}
+		try {
+			new KeywordAutomaton(Collections.singletonList(word.toString()), new boolean[1]);
+			fail("Table of 5001 x 5001 entries accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("too large"));
+		}
+	}
+}
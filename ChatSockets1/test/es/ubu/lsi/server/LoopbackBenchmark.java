@@ -0,0 +1,136 @@
+package es.ubu.lsi.server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ubu.lsi.client.ChatMessageListener;
+import es.ubu.lsi.client.ChatSession;
+import es.ubu.lsi.client.ChatSessionGroup;
+import es.ubu.lsi.common.BufferPool;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.LoopbackTransport;
+import es.ubu.lsi.common.MessageType;
+import es.ubu.lsi.common.TcpTransport;
+import es.ubu.lsi.common.Transport;
+
+/**
+ * Mide la difusion de mensajes del servidor: todas las sesiones envian a la vez
+ * y se cuentan las entregas por segundo y las tramas que el pool ha tenido que
+ * crear.
+ *
+ * No es una prueba unitaria. Con las pruebas compiladas como indica el README
+ * se ejecuta con el transporte (loop o tcp), el numero de sesiones y los
+ * mensajes de cada una:
+ *
+ * <pre>
+ * java -cp "target/classes:target/test-classes:target/test-lib/*" es.ubu.lsi.server.LoopbackBenchmark loop 50 200
+ * </pre>
+ *
+ * @author Jose Maria Santos
+ */
+public class LoopbackBenchmark {
+
+	/** Puerto del servidor. */
+	private static final int PORT = 1500;
+
+	/** Espera maxima de cada ronda, en milisegundos. */
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * Ejecuta la medida.
+	 *
+	 * @param args transporte, sesiones y mensajes por sesion
+	 * @throws Exception si falla la conexion
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "loop";
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		Transport transport = mode.equals("tcp") ? new TcpTransport() : new LoopbackTransport();
+
+		// El servidor anuncia cada conexion por consola
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+			}
+		}));
+		ChatServerImpl server = new ChatServerImpl(PORT, transport);
+		Thread acceptor = new Thread(server::startup, "acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		while (server.server == null) {
+			Thread.sleep(10);
+		}
+
+		AtomicLong delivered = new AtomicLong();
+		ChatSessionGroup group = new ChatSessionGroup(4, transport);
+		ChatSession[] clients = new ChatSession[sessions];
+		for (int i = 0; i < sessions; i++) {
+			clients[i] = group.newSession("localhost", PORT, "user" + i, new ChatMessageListener() {
+
+				@Override
+				public void onMessage(ChatSession session, ChatMessage msg) {
+					if (msg.getType() == MessageType.MESSAGE) {
+						delivered.incrementAndGet();
+					}
+				}
+
+				@Override
+				public void onMessagesLost(ChatSession session, long count) {
+				}
+
+				@Override
+				public void onDisconnect(ChatSession session, Throwable cause) {
+				}
+			});
+			clients[i].connect().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		while (server.clientsMap.size() < sessions) {
+			Thread.sleep(10);
+		}
+		delivered.set(0); // avisos de bienvenida
+
+		BufferPool buffers = server.buffers;
+		long acquires = buffers.getAcquires();
+		long allocations = buffers.getAllocations();
+		long perRound = (long) sessions * sessions;
+		long start = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			for (ChatSession client : clients) {
+				client.send(MessageType.MESSAGE, "message " + m);
+			}
+			// Como mucho dos rondas en vuelo, para no llenar las colas del servidor
+			awaitDeliveries(delivered, m * perRound);
+		}
+		awaitDeliveries(delivered, messages * perRound);
+		long nanos = System.nanoTime() - start;
+		System.setOut(console);
+
+		System.out.printf("%s: %d sessions, %d deliveries in %.0f ms, %.0f deliveries/s%n", mode, sessions,
+				delivered.get(), nanos / 1e6, delivered.get() / (nanos / 1e9));
+		System.out.printf("Buffer pool: %d frames, %d created, %d in use%n", buffers.getAcquires() - acquires,
+				buffers.getAllocations() - allocations, buffers.getInUse());
+		System.exit(0);
+	}
+
+	/**
+	 * Espera a que se hayan entregado los mensajes indicados.
+	 *
+	 * @param delivered entregas
+	 * @param expected  entregas esperadas
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	private static void awaitDeliveries(AtomicLong delivered, long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (delivered.get() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + delivered.get() + " of " + expected + " delivered");
+			}
+			Thread.sleep(1);
+		}
+	}
+}
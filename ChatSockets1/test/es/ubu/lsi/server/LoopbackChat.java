@@ -0,0 +1,203 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import es.ubu.lsi.client.ChatMessageListener;
+import es.ubu.lsi.client.ChatSession;
+import es.ubu.lsi.client.ChatSessionGroup;
+import es.ubu.lsi.client.FileDownloads;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.LoopbackTransport;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Servidor y clientes de chat en la misma JVM, conectados con un
+ * {@link LoopbackTransport}, para las pruebas.
+ *
+ * @author Jose Maria Santos
+ */
+class LoopbackChat implements AutoCloseable {
+
+	/** Puerto del servidor. */
+	static final int PORT = 1500;
+
+	/** Espera maxima de cada comprobacion, en milisegundos. */
+	static final long TIMEOUT_MILLIS = 10000;
+
+	/** Transporte compartido por el servidor y los clientes. */
+	final LoopbackTransport transport = new LoopbackTransport();
+
+	/** Servidor. */
+	final ChatServerImpl server = new ChatServerImpl(PORT, transport);
+
+	/** Grupo de las sesiones de los clientes. */
+	final ChatSessionGroup group = new ChatSessionGroup(2, transport);
+
+	/**
+	 * Arranca el servidor y espera a que acepte conexiones.
+	 */
+	LoopbackChat() {
+		Thread acceptor = new Thread(server::startup, "acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		await("server listening", () -> server.server != null);
+	}
+
+	/**
+	 * Crea un cliente y hace login.
+	 *
+	 * @param username nombre de usuario
+	 * @return cliente conectado
+	 * @throws Exception si falla el login
+	 */
+	Client connect(String username) throws Exception {
+		return resume(username, 0);
+	}
+
+	/**
+	 * Crea un cliente que retoma una sesion anterior y hace login.
+	 *
+	 * @param username nombre de usuario
+	 * @param lastSeq  ultima secuencia recibida en la sesion anterior
+	 * @return cliente conectado
+	 * @throws Exception si falla el login
+	 */
+	Client resume(String username, long lastSeq) throws Exception {
+		Client client = new Client();
+		client.session = group.newSession("localhost", PORT, username, client);
+		client.session.resumeFrom(lastSeq);
+		client.session.connect().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		return client;
+	}
+
+	/**
+	 * Espera a que se cumpla una condicion.
+	 *
+	 * @param what      descripcion de la condicion, para el fallo
+	 * @param condition condicion
+	 */
+	static void await(String what, BooleanSupplier condition) {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting for " + what);
+			}
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail("Interrupted waiting for " + what);
+			}
+		}
+	}
+
+	/**
+	 * Cierra los clientes y el servidor.
+	 */
+	@Override
+	public void close() {
+		group.close();
+		server.shutdown();
+	}
+
+	/**
+	 * Cliente de prueba, guarda los mensajes de chat que recibe.
+	 */
+	static class Client implements ChatMessageListener {
+
+		/** Sesion del cliente. */
+		ChatSession session;
+
+		/** Mensajes de chat recibidos. */
+		final BlockingQueue<ChatMessage> messages = new LinkedBlockingQueue<ChatMessage>();
+
+		/** Cabeceras y trozos de fichero recibidos. */
+		final BlockingQueue<ChatMessage> fileMessages = new LinkedBlockingQueue<ChatMessage>();
+
+		/** Secuencia con la que llego cada mensaje de chat. */
+		private final Map<ChatMessage, Long> seqs = new ConcurrentHashMap<ChatMessage, Long>();
+
+		/** Mensajes perdidos al retomar la sesion. */
+		volatile long lost;
+
+		/** Se abre al cerrarse la sesion. */
+		final CountDownLatch disconnected = new CountDownLatch(1);
+
+		@Override
+		public void onMessage(ChatSession session, ChatMessage msg) {
+			if (msg.getType() == MessageType.MESSAGE) {
+				seqs.put(msg, session.getLastSeq()); // ya es la de este mensaje
+				messages.add(msg);
+			} else if (FileDownloads.isFileMessage(msg)) {
+				fileMessages.add(msg);
+			}
+		}
+
+		@Override
+		public void onMessagesLost(ChatSession session, long count) {
+			lost = count;
+		}
+
+		@Override
+		public void onDisconnect(ChatSession session, Throwable cause) {
+			disconnected.countDown();
+		}
+
+		/**
+		 * Devuelve la secuencia con la que llego un mensaje de chat.
+		 *
+		 * @param msg mensaje recibido
+		 * @return secuencia
+		 */
+		long seqOf(ChatMessage msg) {
+			return seqs.get(msg);
+		}
+
+		/**
+		 * Espera el siguiente mensaje de chat que contiene un texto, descartando los
+		 * anteriores.
+		 *
+		 * @param text texto buscado
+		 * @return mensaje
+		 * @throws InterruptedException si se interrumpe la espera
+		 */
+		ChatMessage expect(String text) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (true) {
+				ChatMessage msg = messages.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if (msg == null) {
+					fail(session.getUsername() + " did not receive " + text);
+				}
+				if (msg.getMessage().contains(text)) {
+					return msg;
+				}
+			}
+		}
+
+		/**
+		 * Espera un mensaje de chat y comprueba que contiene un texto.
+		 *
+		 * @param text texto esperado
+		 * @return mensaje
+		 * @throws InterruptedException si se interrumpe la espera
+		 */
+		ChatMessage next(String text) throws InterruptedException {
+			ChatMessage msg = messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if (msg == null) {
+				fail(session.getUsername() + " did not receive " + text);
+			}
+			if (!msg.getMessage().contains(text)) {
+				fail(session.getUsername() + " expected " + text + " but received " + msg.getMessage());
+			}
+			return msg;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.MailboxFrames;
+
+/**
+ * Pruebas de los buzones de mensajes directos.
+ *
+ * @author Jose Maria Santos
+ */
+public class MailboxStoreTest {
+
+	/** Hora de la prueba, en milisegundos. */
+	private static final long NOW = 1000000000000L;
+
+	/** Almacen de la prueba. */
+	private final MailboxStore store = new MailboxStore();
+
+	/**
+	 * Los mensajes se entregan en orden y el buzon desaparece al entregarlos.
+	 *
+	 * @throws IOException si falla la codificacion
+	 */
+	@Test
+	public void messagesAreDeliveredInOrder() throws IOException {
+		assertTrue(store.store("bob", MailboxFrames.encode(NOW, "ana", "uno"), NOW));
+		assertTrue(store.store("bob", MailboxFrames.encode(NOW + 1, "ana", "dos"), NOW + 1));
+
+		List<MailboxFrames.Entry> entries = MailboxFrames.decode(store.take("bob", NOW + 2));
+		assertEquals(2, entries.size());
+		assertEquals("uno", entries.get(0).getText());
+		assertEquals("dos", entries.get(1).getText());
+		assertNull(store.take("bob", NOW + 2));
+		assertEquals(0, store.size());
+		assertEquals(0, store.allocatedBytes());
+	}
+
+	/**
+	 * Un mensaje que no cabe en un buzon nuevo no deja un buzon vacio.
+	 */
+	@Test
+	public void rejectedMessageLeavesNoMailbox() {
+		assertFalse(store.store("bob", new byte[MailboxStore.MAX_BYTES + 1], NOW));
+		assertEquals(0, store.size());
+		assertEquals(0, store.allocatedBytes());
+	}
+
+	/**
+	 * Entre todos los buzones no se pasa del maximo de bytes, y al caducar los
+	 * mensajes se vuelve a tener sitio.
+	 *
+	 * @throws IOException si falla la codificacion
+	 */
+	@Test
+	public void totalBytesAreBounded() throws IOException {
+		String text = text(MailboxStore.MAX_BYTES / 2);
+		byte[] frame = MailboxFrames.encode(NOW, "ana", text);
+		int stored = 0;
+		while (store.store("user" + stored, frame, NOW)) {
+			stored++;
+			assertTrue("Nothing rejected", stored <= MailboxStore.MAX_MAILBOXES);
+		}
+		assertTrue(store.allocatedBytes() <= MailboxStore.MAX_TOTAL_BYTES);
+		assertEquals(stored, store.size());
+
+		long later = NOW + MailboxStore.EXPIRY_MILLIS + 1;
+		assertTrue(store.store("late", MailboxFrames.encode(later, "ana", text), later));
+		assertEquals(1, store.size());
+	}
+
+	/**
+	 * Genera un texto de una longitud.
+	 *
+	 * @param length longitud
+	 * @return texto
+	 */
+	private static String text(int length) {
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+}
@@ -0,0 +1,92 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pruebas de la recarga del fichero de moderacion.
+ *
+ * @author Jose Maria Santos
+ */
+public class ModerationFilterTest {
+
+	/** Fecha de modificacion fija, para simular cambios en el mismo instante. */
+	private static final long MODIFIED = 1500000000000L;
+
+	/** Fichero de palabras. */
+	private File file;
+
+	/** Filtro de la prueba. */
+	private ModerationFilter filter;
+
+	/**
+	 * Crea el fichero con una palabra y el filtro.
+	 *
+	 * @throws IOException si falla la escritura
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("moderation", ".txt");
+		write("feo".getBytes(StandardCharsets.UTF_8));
+		filter = new ModerationFilter(file);
+	}
+
+	/**
+	 * Detiene el filtro y borra el fichero.
+	 */
+	@After
+	public void tearDown() {
+		filter.shutdown();
+		file.delete();
+	}
+
+	/**
+	 * Un cambio con la misma fecha de modificacion pero otro tamano se carga.
+	 *
+	 * @throws IOException si falla la escritura
+	 */
+	@Test
+	public void changeWithinSameTickIsLoaded() throws IOException {
+		assertEquals("es *** y malo", filter.moderate("ana", "es feo y malo"));
+
+		write("feo\nmalo".getBytes(StandardCharsets.UTF_8));
+		filter.reloadIfChanged();
+		assertEquals("es *** y ****", filter.moderate("ana", "es feo y malo"));
+	}
+
+	/**
+	 * Si el fichero no se puede leer se sigue usando la lista anterior y se
+	 * reintenta, aunque la version buena tenga la misma fecha y tamano.
+	 *
+	 * @throws IOException si falla la escritura
+	 */
+	@Test
+	public void failedLoadIsRetried() throws IOException {
+		write(new byte[] { (byte) 0xFF, (byte) 0xFE, '\n', 'm', 'a', 'l', 'o' }); // UTF-8 invalido
+		filter.reloadIfChanged();
+		assertEquals("es *** y malo", filter.moderate("ana", "es feo y malo"));
+
+		write("ya\nmalo".getBytes(StandardCharsets.UTF_8));
+		filter.reloadIfChanged();
+		assertEquals("es feo y ****", filter.moderate("ana", "es feo y malo"));
+	}
+
+	/**
+	 * Escribe el fichero y le pone siempre la misma fecha de modificacion.
+	 *
+	 * @param content contenido
+	 * @throws IOException si falla la escritura
+	 */
+	private void write(byte[] content) throws IOException {
+		Files.write(file.toPath(), content);
+		file.setLastModified(MODIFIED);
+	}
+}
@@ -0,0 +1,105 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.ubu.lsi.client.PresenceView;
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Pruebas del agrupamiento de altas y bajas del servicio de presencia.
+ *
+ * @author Jose Maria Santos
+ */
+public class PresenceServiceTest {
+
+	/** Deltas difundidos, en orden. */
+	private final List<ChatMessage> deltas = Collections.synchronizedList(new ArrayList<ChatMessage>());
+
+	/** Servicio de la prueba. */
+	private final PresenceService presence = new PresenceService(deltas::add);
+
+	/**
+	 * Detiene el servicio.
+	 */
+	@After
+	public void tearDown() {
+		presence.shutdown();
+	}
+
+	/**
+	 * Un cliente que recibe el snapshot entre el alta y la baja de un usuario ve
+	 * salir a ese usuario, igual que un cliente que ya estaba conectado.
+	 */
+	@Test
+	public void leaveAfterSnapshotReachesClient() {
+		presence.joined("ana");
+		PresenceView before = view(presence.snapshot());
+		presence.joined("yago");
+		PresenceView during = view(presence.snapshot());
+		assertEquals(new TreeSet<String>(Arrays.asList("ana", "yago")), during.online());
+		presence.left("yago");
+		presence.flush();
+
+		applyDeltas(before);
+		applyDeltas(during);
+		assertEquals(Collections.singleton("ana"), before.online());
+		assertEquals(Collections.singleton("ana"), during.online());
+	}
+
+	/**
+	 * Lo mismo con una baja y un alta que se solapan con el snapshot.
+	 */
+	@Test
+	public void rejoinAfterSnapshotReachesClient() {
+		presence.joined("ana");
+		presence.joined("yago");
+		presence.flush();
+		PresenceView before = view(presence.snapshot());
+		applyDeltas(before);
+		presence.left("yago");
+		PresenceView during = view(presence.snapshot());
+		presence.joined("yago");
+		presence.left("ana");
+		presence.flush();
+
+		applyDeltas(before);
+		applyDeltas(during);
+		assertEquals(Collections.singleton("yago"), before.online());
+		assertEquals(Collections.singleton("yago"), during.online());
+	}
+
+	/**
+	 * Crea una vista a partir de un snapshot.
+	 *
+	 * @param snapshot snapshot
+	 * @return vista
+	 */
+	private static PresenceView view(ChatMessage snapshot) {
+		PresenceView view = new PresenceView();
+		view.apply(snapshot);
+		return view;
+	}
+
+	/**
+	 * Aplica a la vista todos los deltas difundidos; los que ya incluye su
+	 * snapshot se ignoran por su version.
+	 *
+	 * @param view vista
+	 */
+	private void applyDeltas(PresenceView view) {
+		synchronized (deltas) {
+			for (ChatMessage delta : deltas) {
+				view.apply(delta);
+			}
+		}
+	}
+}
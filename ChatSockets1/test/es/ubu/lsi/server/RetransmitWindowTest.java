@@ -0,0 +1,122 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.BufferPool;
+import es.ubu.lsi.common.PooledBuffer;
+
+/**
+ * Pruebas de la ventana de retransmision.
+ *
+ * @author Jose Maria Santos
+ */
+public class RetransmitWindowTest {
+
+	/** Pool de las tramas. */
+	private final BufferPool pool = new BufferPool(false);
+
+	/** Ventana de la prueba. */
+	private final RetransmitWindow window = new RetransmitWindow();
+
+	/**
+	 * Al desbordarse la ventana se saca la trama pendiente mas antigua, liberando
+	 * su referencia, se cuenta y su secuencia deja de poder reenviarse.
+	 */
+	@Test
+	public void overflowDropsOldestFrame() {
+		PooledBuffer frame = pool.acquire(64);
+		for (int i = 1; i <= RetransmitWindow.CAPACITY; i++) {
+			assertEquals(i, window.append(frame));
+		}
+		assertTrue(window.isFull());
+		assertEquals(1 + RetransmitWindow.CAPACITY, frame.refCount());
+
+		assertEquals(RetransmitWindow.CAPACITY + 1, window.append(frame));
+		assertEquals(1, window.overflows());
+		assertEquals(1, window.ackedSeq());
+		assertEquals(RetransmitWindow.CAPACITY, window.lag());
+		assertEquals(1 + RetransmitWindow.CAPACITY, frame.refCount());
+
+		window.discard();
+		assertFalse(window.isFull());
+		frame.release();
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Un ACK libera la referencia de las tramas que confirma y solo de esas; los
+	 * repetidos o de otra ventana no liberan nada.
+	 */
+	@Test
+	public void ackReleasesConfirmedFrames() {
+		PooledBuffer[] frames = new PooledBuffer[3];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = pool.acquire(64);
+			window.append(frames[i]);
+			assertEquals(2, frames[i].refCount());
+		}
+
+		window.ack(2);
+		assertEquals(1, frames[0].refCount());
+		assertEquals(1, frames[1].refCount());
+		assertEquals(2, frames[2].refCount());
+		window.ack(2);
+		window.ack(1);
+		window.ack(4);
+		assertEquals(2, frames[2].refCount());
+		assertEquals(1, window.lag());
+
+		window.ack(3);
+		for (PooledBuffer frame : frames) {
+			assertEquals(1, frame.refCount());
+			frame.release();
+		}
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Al descartar la ventana se liberan las tramas pendientes, y las que se
+	 * anaden despues ya no se retienen.
+	 */
+	@Test
+	public void discardReleasesPendingFrames() {
+		PooledBuffer frame = pool.acquire(64);
+		window.append(frame);
+		window.append(frame);
+		assertEquals(3, frame.refCount());
+
+		window.discard();
+		assertEquals(1, frame.refCount());
+		assertEquals(3, window.append(frame));
+		assertEquals(1, frame.refCount());
+		assertEquals(0, window.lag());
+
+		frame.release();
+		assertEquals(0, pool.getInUse());
+	}
+
+	/**
+	 * Solo un ACK que confirma algo cuenta como progreso del cliente.
+	 *
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	@Test
+	public void ackIdleTimeRestartsOnProgress() throws InterruptedException {
+		PooledBuffer frame = pool.acquire(64);
+		window.append(frame);
+		window.append(frame);
+		Thread.sleep(50);
+		window.ack(0); // no confirma nada
+		assertTrue(window.ackIdleMillis() >= 50);
+		window.ack(1);
+		assertTrue(window.ackIdleMillis() < 50);
+
+		window.discard();
+		frame.release();
+		assertEquals(0, pool.getInUse());
+	}
+}
@@ -0,0 +1,177 @@
+package es.ubu.lsi.server;
+
+import static es.ubu.lsi.server.LoopbackChat.await;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import es.ubu.lsi.client.ChatMessageListener;
+import es.ubu.lsi.client.ChatSession;
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.MessageType;
+
+/**
+ * Prueba de resistencia de una sesion larga: un cliente envia muchos mensajes a
+ * otro por el mismo servidor y se comprueba que, una vez lleno el historial de
+ * busqueda, la memoria retenida no crece con el numero de mensajes y que al
+ * terminar se han devuelto todas las tramas al pool.
+ *
+ * La prueba unitaria es corta. Para una sesion larga, con las pruebas compiladas
+ * como indica el README, se ejecuta el main con el numero de mensajes:
+ *
+ * <pre>
+ * java -cp "target/classes:target/test-classes:target/test-lib/*" es.ubu.lsi.server.SessionSoakTest 2000000
+ * </pre>
+ *
+ * @author Jose Maria Santos
+ */
+public class SessionSoakTest {
+
+	/**
+	 * Mensajes que llenan el historial de busqueda, que guarda los ultimos por
+	 * diseno. La memoria se mide a partir de aqui.
+	 */
+	private static final long WARM_UP = ChatHistoryIndex.SEGMENT_SIZE * ChatHistoryIndex.MAX_SEGMENTS;
+
+	/** Mensajes de la prueba unitaria. */
+	private static final long MESSAGES = WARM_UP + 150000;
+
+	/**
+	 * Mensajes enviados entre esperas a que el receptor los lea. Como mucho hay
+	 * dos tandas en vuelo, menos que la ventana de retransmision, para que el
+	 * emisor, cuyos ACK van detras de sus mensajes, no la desborde.
+	 */
+	private static final int BATCH = RetransmitWindow.CAPACITY / 8;
+
+	/** Mensajes entre puntos de control de la memoria, un multiplo de la tanda. */
+	private static final int CHECKPOINT = 400 * BATCH;
+
+	/** Crecimiento maximo del heap ocupado entre el primer punto de control y el resto. */
+	private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024;
+
+	/** Tramas en uso como maximo en un punto de control, la cola y la ventana de los dos clientes. */
+	private static final long MAX_BUFFERS_IN_USE = 2 * (ClientWriter.MAX_QUEUE + RetransmitWindow.CAPACITY);
+
+	/**
+	 * Sesion larga con la memoria acotada.
+	 *
+	 * @throws Exception si falla la prueba
+	 */
+	@Test
+	public void longSessionStaysBounded() throws Exception {
+		soak(MESSAGES, false);
+	}
+
+	/**
+	 * Ejecuta la prueba con el numero de mensajes indicado, mostrando cada punto
+	 * de control.
+	 *
+	 * @param args numero de mensajes
+	 * @throws Exception si falla la prueba
+	 */
+	public static void main(String[] args) throws Exception {
+		soak(args.length > 0 ? Long.parseLong(args[0]) : MESSAGES, true);
+		System.exit(0);
+	}
+
+	/**
+	 * Envia los mensajes de un cliente a otro y comprueba la memoria en cada
+	 * punto de control.
+	 *
+	 * @param messages mensajes a enviar
+	 * @param verbose  true para mostrar cada punto de control
+	 * @throws Exception si falla la prueba
+	 */
+	static void soak(long messages, boolean verbose) throws Exception {
+		try (LoopbackChat chat = new LoopbackChat()) {
+			AtomicLong received = new AtomicLong();
+			ChatSession rx = chat.group.newSession("localhost", LoopbackChat.PORT, "rx", new Counter(received));
+			ChatSession tx = chat.group.newSession("localhost", LoopbackChat.PORT, "tx", new Counter(new AtomicLong()));
+			rx.connect().get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			tx.connect().get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			await("both logged in", () -> chat.server.clientsMap.size() == 2);
+
+			long baseline = -1;
+			for (long i = 1; i <= messages; i++) {
+				CompletableFuture<Void> sent = tx.send(MessageType.MESSAGE, "message number " + i);
+				if (i % BATCH != 0) {
+					continue;
+				}
+				sent.get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				long behind = i - BATCH;
+				await("rx to keep up", () -> received.get() >= behind);
+				if (i >= WARM_UP && i % CHECKPOINT == 0) {
+					long total = i;
+					await("rx to receive everything", () -> received.get() == total);
+					long inUse = chat.server.buffers.getInUse();
+					long heap = usedHeap();
+					if (baseline < 0) {
+						baseline = heap;
+					}
+					if (verbose) {
+						System.err.println(i + " messages: heap " + heap / 1024 + " KB, " + inUse + " buffers in use");
+					}
+					assertTrue("Buffers in use " + inUse, inUse <= MAX_BUFFERS_IN_USE);
+					assertTrue("Heap grew from " + baseline + " to " + heap, heap - baseline <= MAX_HEAP_GROWTH);
+				}
+			}
+
+			tx.logout().get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			rx.logout().get(LoopbackChat.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			await("both logged out", () -> chat.server.clientsMap.isEmpty());
+			await("all buffers released", () -> chat.server.buffers.getInUse() == 0);
+		}
+	}
+
+	/**
+	 * Devuelve el heap ocupado tras una recoleccion completa.
+	 *
+	 * @return bytes ocupados
+	 * @throws InterruptedException si se interrumpe la espera
+	 */
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Receptor que solo cuenta los mensajes de chat.
+	 */
+	private static class Counter implements ChatMessageListener {
+
+		/** Mensajes de chat recibidos. */
+		private final AtomicLong received;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param received contador de mensajes
+		 */
+		Counter(AtomicLong received) {
+			this.received = received;
+		}
+
+		@Override
+		public void onMessage(ChatSession session, ChatMessage msg) {
+			if (msg.getType() == MessageType.MESSAGE) {
+				received.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void onMessagesLost(ChatSession session, long count) {
+		}
+
+		@Override
+		public void onDisconnect(ChatSession session, Throwable cause) {
+		}
+	}
+}